@@ -0,0 +1,52 @@
+package ru.vang.slothsimageloader.benchmark;
+
+import ru.vang.slothsimageloader.cache.CacheKey;
+import ru.vang.slothsimageloader.cache.EvictionPolicy;
+import ru.vang.slothsimageloader.cache.TinyLfuCache;
+
+/**
+ * Replays feed workloads against every eviction policy and prints hit
+ * ratios, which JMH runs report only as raw counters. Run with
+ * {@code java -cp target/benchmarks.jar ru.vang.slothsimageloader.benchmark.HitRatioSimulation}.
+ */
+public final class HitRatioSimulation {
+	private static final int CACHE_SIZE = 1024 * 1024 * 5;
+	private static final int BITMAP_SIZE = 160 * 160 * 4;
+
+	private HitRatioSimulation() {
+	}
+
+	public static void main(final String[] args) {
+		final int[][] workloads = { Workloads.scan(40, 60, 42),
+				Workloads.skewed(Workloads.LENGTH / 8, 42) };
+		final String[] names = { "scan", "skewed" };
+		for (int i = 0; i < workloads.length; i++) {
+			for (EvictionPolicy policy : EvictionPolicy.values()) {
+				System.out.printf("%-7s %-9s hit ratio %.2f%%%n", names[i], policy,
+						hitRatio(workloads[i], policy) * 100);
+			}
+		}
+	}
+
+	private static double hitRatio(final int[] ids, final EvictionPolicy policy) {
+		final TinyLfuCache<CacheKey, Integer> cache = new TinyLfuCache<CacheKey, Integer>(
+				CACHE_SIZE, policy) {
+
+			@Override
+			protected int sizeOf(final CacheKey key, final Integer value) {
+				return value;
+			}
+
+		};
+		int hits = 0;
+		for (int id : ids) {
+			final CacheKey key = new CacheKey(Workloads.source(id), 160, 160);
+			if (cache.get(key) != null) {
+				hits++;
+			} else {
+				cache.put(key, BITMAP_SIZE);
+			}
+		}
+		return (double) hits / ids.length;
+	}
+}
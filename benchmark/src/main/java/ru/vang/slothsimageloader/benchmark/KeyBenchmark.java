@@ -0,0 +1,88 @@
+package ru.vang.slothsimageloader.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.vang.slothsimageloader.cache.CacheKey;
+import ru.vang.slothsimageloader.utils.KeyUtils;
+
+/**
+ * Cost of computing disk keys and of looking up cache keys, which is paid on
+ * every request before any cache is hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+	private static final int KEY_COUNT = 1024;
+
+	private String[] mSources;
+	private byte[] mDigest;
+	private CacheKey[] mKeys;
+	private final Map<CacheKey, Object> mKeyMap = new HashMap<CacheKey, Object>();
+	private int mIndex;
+
+	@Setup
+	public void setUp() {
+		mSources = new String[KEY_COUNT];
+		mKeys = new CacheKey[KEY_COUNT];
+		for (int i = 0; i < KEY_COUNT; i++) {
+			mSources[i] = Workloads.source(i);
+			mKeys[i] = new CacheKey(mSources[i], 480, 320, "rounded|blur", null);
+			mKeyMap.put(mKeys[i], Boolean.TRUE);
+		}
+		mDigest = new byte[16];
+		for (int i = 0; i < mDigest.length; i++) {
+			mDigest[i] = (byte) (i * 17);
+		}
+	}
+
+	private int next() {
+		mIndex = (mIndex + 1) & (KEY_COUNT - 1);
+		return mIndex;
+	}
+
+	@Benchmark
+	public String hashKeyForDisk() {
+		return KeyUtils.hashKeyForDisk(mSources[next()]);
+	}
+
+	@Benchmark
+	public String bytesToHexString() {
+		return KeyUtils.bytesToHexString(mDigest);
+	}
+
+	/**
+	 * Disk key of a new key, as computed once per request.
+	 */
+	@Benchmark
+	public String cacheKeyDiskKey() {
+		final int index = next();
+		return new CacheKey(mSources[index], 480, 320, "rounded|blur", null).getDiskKey();
+	}
+
+	/**
+	 * Lookup of a new key equal to a cached one, as done by memory cache
+	 * and in-flight task map.
+	 */
+	@Benchmark
+	public Object cacheKeyLookup() {
+		final int index = next();
+		return mKeyMap.get(new CacheKey(mSources[index], 480, 320, "rounded|blur", null));
+	}
+}
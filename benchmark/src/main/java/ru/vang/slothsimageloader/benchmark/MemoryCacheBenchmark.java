@@ -0,0 +1,102 @@
+package ru.vang.slothsimageloader.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.vang.slothsimageloader.cache.CacheKey;
+import ru.vang.slothsimageloader.cache.EvictionPolicy;
+import ru.vang.slothsimageloader.cache.TinyLfuCache;
+
+/**
+ * Get and put path of memory cache with fake bitmaps, the way
+ * MemoryCache drives it: lookup, and put of the decoded image on miss. Hit
+ * ratio of each policy is reported as hits and misses counters.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryCacheBenchmark {
+	// Same as MemoryCache.DEFAULT_MEMORY_CACHE_SIZE
+	private static final int CACHE_SIZE = 1024 * 1024 * 5;
+	// Thumbnail of 160x160 ARGB_8888 pixels
+	private static final int BITMAP_SIZE = 160 * 160 * 4;
+	private static final int HOT_SET_SIZE = 40;
+
+	@State(Scope.Benchmark)
+	public static class CacheState {
+		@Param({ "LRU", "TINY_LFU" })
+		public EvictionPolicy policy;
+		@Param({ "scan", "skewed" })
+		public String workload;
+
+		TinyLfuCache<CacheKey, FakeBitmap> cache;
+		CacheKey[] requests;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			cache = new TinyLfuCache<CacheKey, FakeBitmap>(CACHE_SIZE, policy) {
+
+				@Override
+				protected int sizeOf(final CacheKey key, final FakeBitmap value) {
+					return value.byteCount;
+				}
+
+			};
+			final int[] ids = "scan".equals(workload) ? Workloads.scan(HOT_SET_SIZE, 60, 42)
+					: Workloads.skewed(Workloads.LENGTH / 8, 42);
+			requests = new CacheKey[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				requests[i] = new CacheKey(Workloads.source(ids[i]), 160, 160);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class HitCounters {
+		public long hits;
+		public long misses;
+		int index;
+	}
+
+	@Benchmark
+	public FakeBitmap getOrPut(final CacheState state, final HitCounters counters) {
+		final CacheKey key = state.requests[counters.index];
+		counters.index = (counters.index + 1) & (Workloads.LENGTH - 1);
+		FakeBitmap bitmap = state.cache.get(key);
+		if (bitmap == null) {
+			counters.misses++;
+			bitmap = new FakeBitmap(BITMAP_SIZE);
+			state.cache.put(key, bitmap);
+		} else {
+			counters.hits++;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Stands for a decoded bitmap, only its size matters to the cache.
+	 */
+	public static final class FakeBitmap {
+		final int byteCount;
+
+		FakeBitmap(final int byteCount) {
+			this.byteCount = byteCount;
+		}
+	}
+}
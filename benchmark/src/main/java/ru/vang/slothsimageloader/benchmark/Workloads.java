@@ -0,0 +1,67 @@
+package ru.vang.slothsimageloader.benchmark;
+
+import java.util.Random;
+
+/**
+ * Request sequences of image feeds. Sequences are generated up front so
+ * benchmarks measure the cache rather than the random generator.
+ */
+final class Workloads {
+	// Large enough to never repeat within a measurement iteration
+	static final int LENGTH = 1 << 20;
+
+	private Workloads() {
+	}
+
+	static String source(final int id) {
+		return "http://images.example.com/feed/" + id + "/photo.jpg?w=480&h=320";
+	}
+
+	/**
+	 * Share of requests go to a small set of reused images such as avatars
+	 * and icons, the rest are images seen only once while scrolling.
+	 *
+	 * @return ids of requested images
+	 */
+	static int[] scan(final int hotSetSize, final int hotPercent, final long seed) {
+		final Random random = new Random(seed);
+		final int[] ids = new int[LENGTH];
+		int scanId = hotSetSize;
+		for (int i = 0; i < LENGTH; i++) {
+			ids[i] = random.nextInt(100) < hotPercent ? random.nextInt(hotSetSize) : scanId++;
+		}
+		return ids;
+	}
+
+	/**
+	 * Zipf-like popularity, a few images are requested very often and most
+	 * rarely.
+	 *
+	 * @return ids of requested images
+	 */
+	static int[] skewed(final int imageCount, final long seed) {
+		final Random random = new Random(seed);
+		final double[] cumulative = new double[imageCount];
+		double sum = 0;
+		for (int i = 0; i < imageCount; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		final int[] ids = new int[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			final double value = random.nextDouble() * sum;
+			int low = 0;
+			int high = imageCount - 1;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (cumulative[middle] < value) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			ids[i] = low;
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,104 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.vang.slothsimageloader.utils.KeyUtils;
+
+/**
+ * Get and put paths of both disk stores, without the write-behind queue and
+ * locks of DiskCache. Lives in the cache package because the stores are
+ * package private. Reads mostly hit the page cache of the OS, so the numbers
+ * show the overhead of the store rather than of the device.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskStoreBenchmark {
+	// Same as the default disk cache size of the loader
+	private static final long STORE_SIZE = 1024 * 1024 * 10;
+	private static final int ENTRY_COUNT = 128;
+
+	public enum Store {
+		DISK_LRU, SEGMENTED
+	}
+
+	@State(Scope.Benchmark)
+	public static class StoreState {
+		@Param({ "DISK_LRU", "SEGMENTED" })
+		public Store store;
+		// Encoded thumbnail and encoded photo
+		@Param({ "16384", "65536" })
+		public int entrySize;
+
+		File directory;
+		DiskStore diskStore;
+		String[] keys;
+		DiskEntry entry;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			directory = File.createTempFile("disk-store", "");
+			directory.delete();
+			diskStore = store == Store.SEGMENTED ? SegmentStore.open(directory, STORE_SIZE)
+					: DiskLruStore.open(directory, STORE_SIZE);
+
+			final byte[] data = new byte[entrySize];
+			new Random(42).nextBytes(data);
+			entry = new DiskEntry(data, "\"etag\"", null, DiskEntry.NEVER_EXPIRES);
+			keys = new String[ENTRY_COUNT];
+			for (int i = 0; i < ENTRY_COUNT; i++) {
+				keys[i] = KeyUtils.hashKeyForDisk("http://images.example.com/feed/" + i
+						+ "/photo.jpg");
+				diskStore.put(keys[i], entry);
+			}
+			diskStore.flush();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			diskStore.delete();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int index;
+
+		String next(final String[] keys) {
+			index = (index + 1) % keys.length;
+			return keys[index];
+		}
+	}
+
+	@Benchmark
+	public DiskEntry get(final StoreState state, final Cursor cursor) throws IOException {
+		return state.diskStore.get(cursor.next(state.keys));
+	}
+
+	/**
+	 * Replaces stored entries, so the store size stays the same.
+	 */
+	@Benchmark
+	public void put(final StoreState state, final Cursor cursor) throws IOException {
+		state.diskStore.put(cursor.next(state.keys), state.entry);
+	}
+}
@@ -1,13 +1,33 @@
 package ru.vang.slothsimageloader;
 
-import ru.vang.slothsimageloader.SlothsImageLoader.OnPostProcessListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 import ru.vang.slothsimageloader.binder.FadeImageViewBinder;
 import ru.vang.slothsimageloader.binder.ViewBinder;
+import ru.vang.slothsimageloader.cache.DiskCache;
+import ru.vang.slothsimageloader.cache.EncodedMemoryCache;
+import ru.vang.slothsimageloader.cache.EvictionPolicy;
+import ru.vang.slothsimageloader.fetcher.AssetFetcher;
+import ru.vang.slothsimageloader.fetcher.ContentFetcher;
+import ru.vang.slothsimageloader.fetcher.Fetcher;
+import ru.vang.slothsimageloader.fetcher.FileFetcher;
+import ru.vang.slothsimageloader.fetcher.HttpFetcher;
+import ru.vang.slothsimageloader.fetcher.ResourceFetcher;
+import ru.vang.slothsimageloader.metrics.MetricsListener;
+import ru.vang.slothsimageloader.transform.Transformation;
 import ru.vang.slothsimageloader.utils.StorageUtils;
 import android.content.Context;
 
 public class CacheParams {
 	public static final int DEFAULT_THREAD_NUMBER = 5;
+	public static final int DEFAULT_DISK_THREAD_NUMBER = 2;
+	public static final int DEFAULT_DECODE_THREAD_NUMBER = 2;
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
 	public static final String DEFAULT_CACHE_DIR = "images";
 	public static final int DEFAULT_STUB_RES_ID = android.R.color.transparent;
 	public static final int DEFAULT_CONNECTION_TIMEOUT = 15000;
@@ -15,23 +35,70 @@ public class CacheParams {
 	public static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 20;
 
 	public final int threadNumber;
+	public final int diskThreadNumber;
+	public final int decodeThreadNumber;
+	public final int maxRequestsPerHost;
+	public final boolean adaptiveConcurrency;
 	public final String cacheDirPath;
 	public final int stubResId;
 	public final int connectionTimeout;
 	public final int readTimeout;
 	public final int diskCacheSize;
+	public final int diskWriteBufferSize;
+	public final DiskCache.StoreType diskStoreType;
+	public final boolean diskAdmission;
+	public final int encodedCacheSize;
+	public final boolean encodedCacheDirect;
+	public final EvictionPolicy encodedCacheEvictionPolicy;
 	public final ViewBinder binder;
-	public final OnPostProcessListener postProcess;
+	/**
+	 * @deprecated use {@link #transformations}
+	 */
+	@Deprecated
+	public final SlothsImageLoader.OnPostProcessListener postProcess;
+	public final List<Transformation> transformations;
+	public final ImageOptions imageOptions;
+	/**
+	 * Fetchers by lower case URI scheme, sources without scheme are files
+	 */
+	public final Map<String, Fetcher> fetchers;
+	public final MetricsListener metricsListener;
+	public final Context context;
 
 	private CacheParams(final Builder builder) {
 		threadNumber = builder.threadNumber;
+		diskThreadNumber = builder.diskThreadNumber;
+		decodeThreadNumber = builder.decodeThreadNumber;
+		maxRequestsPerHost = builder.maxRequestsPerHost;
+		adaptiveConcurrency = builder.adaptiveConcurrency;
 		cacheDirPath = builder.cacheDirPath;
 		stubResId = builder.stubResId;
 		connectionTimeout = builder.connectionTimeout;
 		readTimeout = builder.readTimeout;
 		diskCacheSize = builder.diskCacheSize;
+		diskWriteBufferSize = builder.diskWriteBufferSize;
+		diskStoreType = builder.diskStoreType;
+		diskAdmission = builder.diskAdmission;
+		encodedCacheSize = builder.encodedCacheSize;
+		encodedCacheDirect = builder.encodedCacheDirect;
+		encodedCacheEvictionPolicy = builder.encodedCacheEvictionPolicy;
 		binder = builder.binder;
 		postProcess = builder.postProcess;
+		transformations = Collections.unmodifiableList(new ArrayList<Transformation>(
+				builder.transformations));
+		imageOptions = builder.imageOptions;
+		final Map<String, Fetcher> fetchers = new HashMap<String, Fetcher>();
+		final HttpFetcher httpFetcher = new HttpFetcher(connectionTimeout, readTimeout);
+		fetchers.put(HttpFetcher.SCHEME_HTTP, httpFetcher);
+		fetchers.put(HttpFetcher.SCHEME_HTTPS, httpFetcher);
+		fetchers.put(FileFetcher.SCHEME, new FileFetcher());
+		fetchers.put(ContentFetcher.SCHEME, new ContentFetcher(builder.context));
+		fetchers.put(AssetFetcher.SCHEME, new AssetFetcher(builder.context));
+		fetchers.put(ResourceFetcher.SCHEME, new ResourceFetcher(builder.context));
+		fetchers.putAll(builder.fetchers);
+		this.fetchers = Collections.unmodifiableMap(fetchers);
+		metricsListener = builder.metricsListener;
+		context = builder.context;
 	}
 
 	public static CacheParams getDefaultParams(final Context context) {
@@ -40,24 +107,79 @@ public class CacheParams {
 
 	public static class Builder {
 		private int threadNumber = DEFAULT_THREAD_NUMBER;
+		private int diskThreadNumber = DEFAULT_DISK_THREAD_NUMBER;
+		private int decodeThreadNumber = DEFAULT_DECODE_THREAD_NUMBER;
+		private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+		private boolean adaptiveConcurrency = false;
 		private String cacheDirPath;
 		private int stubResId = DEFAULT_STUB_RES_ID;
 		private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
 		private int readTimeout = DEFAULT_READ_TIMEOUT;
 		private int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+		private int diskWriteBufferSize = DiskCache.DEFAULT_WRITE_BUFFER_SIZE;
+		private DiskCache.StoreType diskStoreType = DiskCache.StoreType.DISK_LRU;
+		private boolean diskAdmission = false;
+		private int encodedCacheSize = EncodedMemoryCache.DEFAULT_CACHE_SIZE;
+		private boolean encodedCacheDirect = false;
+		private EvictionPolicy encodedCacheEvictionPolicy = EvictionPolicy.TINY_LFU;
 		private ViewBinder binder;
-		private OnPostProcessListener postProcess = null;
+		@SuppressWarnings("deprecation")
+		private SlothsImageLoader.OnPostProcessListener postProcess = null;
+		private final List<Transformation> transformations = new ArrayList<Transformation>();
+		private ImageOptions imageOptions = ImageOptions.DEFAULT;
+		private final Map<String, Fetcher> fetchers = new HashMap<String, Fetcher>();
+		private MetricsListener metricsListener = null;
+		private final Context context;
 
 		public Builder(final Context context) {
+			this.context = context.getApplicationContext();
 			cacheDirPath = StorageUtils.getDiskCacheDirPath(context, DEFAULT_CACHE_DIR);
 			binder = new FadeImageViewBinder(context);
 		}
 
+		/**
+		 * Sets number of threads which download images, the upper bound in
+		 * adaptive mode.
+		 */
 		public Builder setThreadNumber(final int threadNumber) {
 			this.threadNumber = threadNumber;
 			return this;
 		}
 
+		/**
+		 * Sets number of threads which read images from disk cache.
+		 */
+		public Builder setDiskThreadNumber(final int diskThreadNumber) {
+			this.diskThreadNumber = diskThreadNumber;
+			return this;
+		}
+
+		/**
+		 * Sets number of threads which decode and post process images.
+		 */
+		public Builder setDecodeThreadNumber(final int decodeThreadNumber) {
+			this.decodeThreadNumber = decodeThreadNumber;
+			return this;
+		}
+
+		/**
+		 * Enables adjusting number of download threads to measured throughput
+		 * and error rate of downloads, see {@link #setThreadNumber(int)}.
+		 */
+		public Builder setAdaptiveConcurrency(final boolean adaptiveConcurrency) {
+			this.adaptiveConcurrency = adaptiveConcurrency;
+			return this;
+		}
+
+		/**
+		 * Sets max number of concurrent downloads from one host. Downloads
+		 * over the limit wait without holding a download thread.
+		 */
+		public Builder setMaxRequestsPerHost(final int maxRequestsPerHost) {
+			this.maxRequestsPerHost = maxRequestsPerHost;
+			return this;
+		}
+
 		public Builder setCacheDir(final Context context, final String cacheDir) {
 			cacheDirPath = StorageUtils.getDiskCacheDirPath(context, cacheDir);
 			return this;
@@ -88,16 +210,103 @@ public class CacheParams {
 			return this;
 		}
 
+		/**
+		 * Sets max size in bytes of downloaded data waiting to be written to
+		 * disk cache. When it is exceeded downloads are written synchronously.
+		 */
+		public Builder setDiskWriteBufferSize(final int diskWriteBufferSize) {
+			this.diskWriteBufferSize = diskWriteBufferSize;
+			return this;
+		}
+
+		/**
+		 * Sets backend of disk cache. Entries are not migrated when it is
+		 * changed, each backend keeps its own files.
+		 */
+		public Builder setDiskStoreType(final DiskCache.StoreType diskStoreType) {
+			this.diskStoreType = diskStoreType;
+			return this;
+		}
+
+		/**
+		 * Sets size in bytes of memory cache of encoded images which is
+		 * looked up before disk cache. Pass zero to disable it.
+		 * 
+		 * @param direct
+		 *            keep the data in direct buffers outside of the Java heap
+		 */
+		public Builder setEncodedCacheSize(final int encodedCacheSize, final boolean direct) {
+			this.encodedCacheSize = encodedCacheSize;
+			this.encodedCacheDirect = direct;
+			return this;
+		}
+
+		public Builder setEncodedCacheEvictionPolicy(final EvictionPolicy policy) {
+			this.encodedCacheEvictionPolicy = policy;
+			return this;
+		}
+
+		/**
+		 * Enables admission filter of disk cache. Once the cache is full a new
+		 * image is written only if it was requested at least twice recently,
+		 * so images seen once do not evict frequently reused ones.
+		 */
+		public Builder setDiskAdmission(final boolean diskAdmission) {
+			this.diskAdmission = diskAdmission;
+			return this;
+		}
+
 		public Builder setViewBinder(final ViewBinder binder) {
 			this.binder = binder;
 			return this;
 		}
 
-		public Builder setPostProcessListener(final OnPostProcessListener postProcess) {
+		/**
+		 * Listener is applied after transformations. Its results are cached
+		 * only in memory since it has no stable identity.
+		 * 
+		 * @deprecated use {@link #addTransformation(Transformation)}
+		 */
+		@Deprecated
+		public Builder setPostProcessListener(
+				final SlothsImageLoader.OnPostProcessListener postProcess) {
 			this.postProcess = postProcess;
 			return this;
 		}
 
+		/**
+		 * Adds transformation to the end of the chain applied to decoded
+		 * images.
+		 */
+		public Builder addTransformation(final Transformation transformation) {
+			transformations.add(transformation);
+			return this;
+		}
+
+		/**
+		 * Sets pixel format of decoded images and format of transformed images
+		 * in disk cache, can be overridden per request.
+		 */
+		public Builder setImageOptions(final ImageOptions imageOptions) {
+			this.imageOptions = imageOptions;
+			return this;
+		}
+
+		/**
+		 * Sets fetcher of the URI scheme, replacing the default one. By
+		 * default http, https, file, content, asset and android.resource
+		 * schemes are supported.
+		 */
+		public Builder setFetcher(final String scheme, final Fetcher fetcher) {
+			fetchers.put(scheme.toLowerCase(Locale.US), fetcher);
+			return this;
+		}
+
+		public Builder setMetricsListener(final MetricsListener metricsListener) {
+			this.metricsListener = metricsListener;
+			return this;
+		}
+
 		public CacheParams build() {
 			final CacheParams params = new CacheParams(this);
 			return params;
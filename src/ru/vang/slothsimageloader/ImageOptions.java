@@ -0,0 +1,57 @@
+package ru.vang.slothsimageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * Pixel format of decoded images and format in which transformed images are
+ * stored in disk cache. Downloaded images are stored as they are. Options are
+ * part of cache keys, so images loaded with different options are cached
+ * separately.
+ */
+public final class ImageOptions {
+	public static final ImageOptions DEFAULT = new ImageOptions(Bitmap.Config.ARGB_8888,
+			CompressFormat.PNG, 100);
+
+	/**
+	 * Preferred config, e.g. RGB_565 halves memory of opaque images. Decoder
+	 * may choose another config if the image can not be decoded to this one.
+	 */
+	public final Bitmap.Config config;
+	public final CompressFormat format;
+	/**
+	 * Value from 0 to 100, ignored by lossless formats
+	 */
+	public final int quality;
+	private final String mConfigKey;
+	private final String mKey;
+
+	public ImageOptions(final Bitmap.Config config, final CompressFormat format,
+			final int quality) {
+		if (config == null || format == null) {
+			throw new IllegalArgumentException("Config and format can not be null");
+		}
+		if (quality < 0 || quality > 100) {
+			throw new IllegalArgumentException("Quality must be from 0 to 100");
+		}
+		this.config = config;
+		this.format = format;
+		this.quality = quality;
+		mConfigKey = config.toString();
+		mKey = mConfigKey + "-" + format + "-" + quality;
+	}
+
+	/**
+	 * Format and quality affect only transformed images stored in disk cache,
+	 * so they are part of the key only if the image is transformed.
+	 * 
+	 * @return key of the options, null for default ones so keys of images
+	 *         cached with them do not change
+	 */
+	String getKey(final boolean transformed) {
+		if (transformed) {
+			return DEFAULT.mKey.equals(mKey) ? null : mKey;
+		}
+		return DEFAULT.mConfigKey.equals(mConfigKey) ? null : mConfigKey;
+	}
+}
@@ -1,39 +1,123 @@
 package ru.vang.slothsimageloader;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import ru.vang.slothsimageloader.cache.CacheKey;
 import ru.vang.slothsimageloader.cache.DiskCache;
+import ru.vang.slothsimageloader.cache.DiskEntry;
+import ru.vang.slothsimageloader.cache.EncodedMemoryCache;
+import ru.vang.slothsimageloader.cache.EvictionPolicy;
 import ru.vang.slothsimageloader.cache.MemoryCache;
-import ru.vang.slothsimageloader.utils.FlushedInputStream;
+import ru.vang.slothsimageloader.executor.AdaptiveConcurrency;
+import ru.vang.slothsimageloader.executor.HostLimiter;
+import ru.vang.slothsimageloader.executor.PrioritizedTask;
+import ru.vang.slothsimageloader.executor.PriorityExecutor;
+import ru.vang.slothsimageloader.fetcher.Cancellation;
+import ru.vang.slothsimageloader.fetcher.Fetcher;
+import ru.vang.slothsimageloader.fetcher.FileFetcher;
+import ru.vang.slothsimageloader.fetcher.HttpFetcher;
+import ru.vang.slothsimageloader.fetcher.LocalFetcher;
+import ru.vang.slothsimageloader.fetcher.NetworkFetcher;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics.Counter;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics.Timer;
+import ru.vang.slothsimageloader.metrics.MetricsSnapshot;
+import ru.vang.slothsimageloader.transform.Transformation;
+import ru.vang.slothsimageloader.utils.BitmapUtils;
+import ru.vang.slothsimageloader.utils.DeviceUtils;
+import ru.vang.slothsimageloader.utils.VersionUtils;
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.Build;
 import android.os.Handler;
+import android.util.DisplayMetrics;
 import android.view.View;
+import android.view.ViewGroup.LayoutParams;
+
+import com.example.asyncimageloader.R;
 
 public class SlothsImageLoader {
-	private final ExecutorService mExecutorService;
+	// Time without memory warnings after which memory cache grows back
+	private static final long MEMORY_RESTORE_DELAY = 30000;
+	private final PriorityExecutor mDiskExecutor;
+	private final PriorityExecutor mNetworkExecutor;
+	private final PriorityExecutor mDecodeExecutor;
+	private final HostLimiter mHostLimiter;
+	// Null if number of download threads is fixed
+	private final AdaptiveConcurrency mNetworkConcurrency;
 	private static final MemoryCache sMemoryCache = new MemoryCache();
 	private final DiskCache mDiskCache;
+	// Null if disabled
+	private final EncodedMemoryCache mEncodedCache;
 	private CacheParams mCacheParams;
 	private final Handler mHandler = new Handler();
+	private final LoaderMetrics mMetrics = new LoaderMetrics();
+	// Prefetch is paused while memory cache is trimmed
+	private volatile boolean mMemoryPressure;
+	private final Runnable mRestoreMemoryTask = new Runnable() {
+
+		@Override
+		public void run() {
+			if (DeviceUtils.isLowMemory(mCacheParams.context)) {
+				mHandler.postDelayed(this, MEMORY_RESTORE_DELAY);
+				return;
+			}
+			sMemoryCache.restoreSize();
+			mMemoryPressure = false;
+		}
+
+	};
+	private Object mMemoryCallbacks;
+	// View.OnAttachStateChangeListener on API 12+, kept as Object to load the
+	// class on older versions
+	private Object mAttachListener;
+	// Views with requests of this loader, accessed only from UI thread
+	private final Map<View, ViewRequest> mBoundViews = new WeakHashMap<View, ViewRequest>();
+	private final List<Transformation> mTransformations;
+	// Null if images are not transformed
+	private final String mTransformationKey;
+	// Transformed images are put in disk cache when all transformations
+	// have stable keys
+	private final boolean mStoreTransformed;
 
-	private Map<View, String> mViews = Collections
-			.synchronizedMap(new WeakHashMap<View, String>());
+	// Read without locking, tasks are put and removed while holding its lock
+	private final Map<CacheKey, LoadImageTask> mTasksInProgress = new ConcurrentHashMap<CacheKey, LoadImageTask>();
+	// Tasks which load encoded images by original keys, guarded by
+	// mTasksInProgress lock
+	private final Map<CacheKey, SourceTask> mSourceTasks = new HashMap<CacheKey, SourceTask>();
 
 	public enum ImageSourceType {
-		MEMORY, DISK, NETWORK
+		MEMORY, DISK, NETWORK, LOCAL
 	}
 
+	public enum PrefetchMode {
+		DISK_ONLY, MEMORY_AND_DISK
+	}
+
+	private enum Stage {
+		DISK, NETWORK, DECODE
+	}
+
+	/**
+	 * @deprecated use {@link Transformation}
+	 */
+	@Deprecated
 	public interface OnPostProcessListener {
 
 		public Bitmap onPostProcess(final Bitmap bitmap);
@@ -43,27 +127,542 @@ public class SlothsImageLoader {
 	public SlothsImageLoader(final CacheParams cacheParams) {
 		HttpURLConnection.setFollowRedirects(true);
 		mCacheParams = cacheParams;
-		mExecutorService = Executors.newFixedThreadPool(cacheParams.threadNumber);
-		mDiskCache = DiskCache.open(cacheParams.cacheDirPath, cacheParams.diskCacheSize);
+		mDiskExecutor = new PriorityExecutor(cacheParams.diskThreadNumber);
+		mNetworkExecutor = new PriorityExecutor(cacheParams.threadNumber);
+		mDecodeExecutor = new PriorityExecutor(cacheParams.decodeThreadNumber);
+		mHostLimiter = new HostLimiter(cacheParams.maxRequestsPerHost);
+		mNetworkConcurrency = cacheParams.adaptiveConcurrency ? new AdaptiveConcurrency(
+				mNetworkExecutor, cacheParams.threadNumber) : null;
+		mDiskCache = DiskCache.open(cacheParams.cacheDirPath, cacheParams.diskCacheSize,
+				cacheParams.diskWriteBufferSize, cacheParams.diskStoreType,
+				cacheParams.diskAdmission);
+		mEncodedCache = cacheParams.encodedCacheSize > 0 ? new EncodedMemoryCache(
+				cacheParams.encodedCacheSize, cacheParams.encodedCacheDirect,
+				cacheParams.encodedCacheEvictionPolicy) : null;
+		mMetrics.setListener(cacheParams.metricsListener);
+
+		mTransformations = new ArrayList<Transformation>(cacheParams.transformations);
+		final Transformation postProcess = getPostProcessTransformation(cacheParams);
+		if (postProcess != null) {
+			mTransformations.add(postProcess);
+		}
+		mTransformationKey = getTransformationKey(mTransformations);
+		mStoreTransformed = mTransformationKey != null && postProcess == null;
+
+		if (VersionUtils.hasIceCreamSandwich()) {
+			registerMemoryCallbacks();
+		}
+	}
+
+	/**
+	 * Application context keeps its callbacks forever, so the loader is
+	 * referenced weakly and can be collected without calling
+	 * {@link SlothsImageLoader#close()}. Callbacks of a collected loader
+	 * unregister themselves.
+	 */
+	@TargetApi(14)
+	private static final class MemoryCallbacks implements ComponentCallbacks2 {
+		private final WeakReference<SlothsImageLoader> mLoader;
+		private final Context mContext;
+
+		public MemoryCallbacks(final SlothsImageLoader loader) {
+			mLoader = new WeakReference<SlothsImageLoader>(loader);
+			mContext = loader.mCacheParams.context;
+		}
+
+		@Override
+		public void onTrimMemory(final int level) {
+			final SlothsImageLoader loader = getLoader();
+			if (loader != null) {
+				loader.onTrimMemory(level);
+			}
+		}
+
+		@Override
+		public void onLowMemory() {
+			final SlothsImageLoader loader = getLoader();
+			if (loader != null) {
+				loader.onLowMemory();
+			}
+		}
+
+		@Override
+		public void onConfigurationChanged(final Configuration newConfig) {
+		}
+
+		private SlothsImageLoader getLoader() {
+			final SlothsImageLoader loader = mLoader.get();
+			if (loader == null) {
+				mContext.unregisterComponentCallbacks(this);
+			}
+			return loader;
+		}
+	}
+
+	/**
+	 * Adapts deprecated post process listener to a transformation.
+	 * 
+	 * @return null if the listener is not set
+	 */
+	@SuppressWarnings("deprecation")
+	private static Transformation getPostProcessTransformation(final CacheParams cacheParams) {
+		return cacheParams.postProcess == null ? null : new PostProcessTransformation(
+				cacheParams.postProcess);
+	}
+
+	@TargetApi(14)
+	private void registerMemoryCallbacks() {
+		final ComponentCallbacks2 callbacks = new MemoryCallbacks(this);
+		mCacheParams.context.registerComponentCallbacks(callbacks);
+		mMemoryCallbacks = callbacks;
+	}
+
+	/**
+	 * Keys of detached views are released, so their bitmaps can be reused
+	 * while views are not displayed. The image is restored when the view is
+	 * attached again without being rebound.
+	 */
+	@TargetApi(12)
+	private void addAttachListener(final View view) {
+		if (mAttachListener == null) {
+			mAttachListener = new View.OnAttachStateChangeListener() {
+
+				@Override
+				public void onViewAttachedToWindow(final View v) {
+					restoreView(v);
+				}
+
+				@Override
+				public void onViewDetachedFromWindow(final View v) {
+					releaseView(v);
+				}
+
+			};
+		}
+		view.addOnAttachStateChangeListener((View.OnAttachStateChangeListener) mAttachListener);
+	}
+
+	@TargetApi(12)
+	private void removeAttachListener(final View view) {
+		if (mAttachListener != null) {
+			view.removeOnAttachStateChangeListener((View.OnAttachStateChangeListener) mAttachListener);
+		}
 	}
 
+	@TargetApi(14)
+	private void unregisterMemoryCallbacks() {
+		if (mMemoryCallbacks != null) {
+			mCacheParams.context
+					.unregisterComponentCallbacks((ComponentCallbacks2) mMemoryCallbacks);
+			mMemoryCallbacks = null;
+		}
+	}
+
+	/**
+	 * Shrinks memory cache and bitmap pool according to the level and pauses
+	 * prefetch. They grow back when there were no memory warnings for a
+	 * while. Called automatically on Android 4.0 and above, on older versions
+	 * call {@link #onLowMemory()} from Application.onLowMemory().
+	 * 
+	 * @param level
+	 *            one of ComponentCallbacks2.TRIM_MEMORY_* constants
+	 */
+	public void onTrimMemory(final int level) {
+		final float fraction;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			fraction = 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			fraction = 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			fraction = 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			fraction = 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			fraction = 0.5f;
+		} else {
+			fraction = 0.75f;
+		}
+		mMemoryPressure = true;
+		sMemoryCache.trimToFraction(fraction);
+		if (mEncodedCache != null) {
+			mEncodedCache.trimToFraction(fraction);
+		}
+		mHandler.removeCallbacks(mRestoreMemoryTask);
+		mHandler.postDelayed(mRestoreMemoryTask, MEMORY_RESTORE_DELAY);
+	}
+
+	public void onLowMemory() {
+		onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
+	/**
+	 * @return fetcher of the source scheme or null if it is not supported
+	 */
+	private Fetcher getFetcher(final String source) {
+		final int schemeEnd = source.indexOf(':');
+		if (schemeEnd <= 0 || source.charAt(0) == '/') {
+			return mCacheParams.fetchers.get(FileFetcher.SCHEME);
+		}
+		return mCacheParams.fetchers.get(source.substring(0, schemeEnd).toLowerCase(
+				Locale.US));
+	}
+
+	private static String getTransformationKey(final List<Transformation> transformations) {
+		if (transformations.isEmpty()) {
+			return null;
+		}
+		final StringBuilder builder = new StringBuilder();
+		for (Transformation transformation : transformations) {
+			if (builder.length() > 0) {
+				builder.append('|');
+			}
+			builder.append(transformation.getKey());
+		}
+		return builder.toString();
+	}
+
+	private String getOptionsKey(final ImageOptions options) {
+		return options.getKey(mTransformationKey != null);
+	}
+
+	/**
+	 * Loads image decoded to the size of the view. If the view is not measured
+	 * yet its layout params are used and the screen size otherwise.
+	 */
 	public void loadImage(final String source, final View view) {
-		if (isSameTaskExecuted(view, source)) {
+		final int width = getTargetWidth(view);
+		final int height = getTargetHeight(view);
+		loadImage(source, view, width, height);
+	}
+
+	/**
+	 * Loads image decoded with the largest sample size which keeps both
+	 * dimensions equal or bigger than the requested ones. Pass zero width and
+	 * height to load the image in full resolution.
+	 */
+	public void loadImage(final String source, final View view, final int width,
+			final int height) {
+		loadImage(source, view, width, height, PrioritizedTask.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Same as {@link #loadImage(String, View, int, int)}. Images with higher
+	 * priority are loaded first, images with the same priority are loaded in
+	 * reverse order of requests. Loading of the image previously requested for
+	 * the view is cancelled if no other view waits for it.
+	 * 
+	 * @param priority
+	 *            one of PrioritizedTask.PRIORITY_* constants
+	 */
+	public void loadImage(final String source, final View view, final int width,
+			final int height, final int priority) {
+		loadImage(source, view, width, height, priority, mCacheParams.imageOptions);
+	}
+
+	/**
+	 * Same as {@link #loadImage(String, View, int, int, int)} with options
+	 * which override the ones of the loader.
+	 */
+	public void loadImage(final String source, final View view, final int width,
+			final int height, final int priority, final ImageOptions options) {
+		final CacheKey key = new CacheKey(source, width, height, mTransformationKey,
+				getOptionsKey(options));
+		final ViewRequest request = bindView(view, key, priority, options);
+		if (request == null) {
+			return;
+		}
+
+		final long start = System.nanoTime();
+		final Bitmap bitmap = sMemoryCache.getBitmapFromCache(key);
+		if (bitmap == null) {
+			mMetrics.increment(Counter.MEMORY_MISSES);
+			mCacheParams.binder.displayStub(view, mCacheParams.stubResId);
+			submitLoadImageTask(key, source, width, height, priority, options,
+					new ViewTarget(view, request, false));
+		} else {
+			mMetrics.increment(Counter.MEMORY_HITS);
+			mMetrics.recordTime(Timer.LOAD, ImageSourceType.MEMORY, System.nanoTime() - start);
+			mCacheParams.binder.displayImage(view, bitmap, ImageSourceType.MEMORY);
+		}
+	}
+
+	/**
+	 * Same as {@link #loadImage(String, View, int, int, int)}, but a preview
+	 * is shown until the image is loaded. The preview is the largest bitmap
+	 * of the same source in memory cache, or the thumbnail otherwise. The
+	 * thumbnail is loaded with the given priority and the image with one
+	 * step lower priority.
+	 * 
+	 * @param thumbnailSource
+	 *            source of a low resolution version of the image, may be null
+	 */
+	public void loadImageWithThumbnail(final String thumbnailSource, final String source,
+			final View view, final int width, final int height, final int priority) {
+		final ImageOptions options = mCacheParams.imageOptions;
+		final CacheKey key = new CacheKey(source, width, height, mTransformationKey,
+				getOptionsKey(options));
+		final int imagePriority = Math.max(PrioritizedTask.PRIORITY_LOW, priority - 1);
+		final ViewRequest request = bindView(view, key, imagePriority, options);
+		if (request == null) {
+			return;
+		}
+
+		final long start = System.nanoTime();
+		final Bitmap bitmap = sMemoryCache.getBitmapFromCache(key);
+		if (bitmap != null) {
+			mMetrics.increment(Counter.MEMORY_HITS);
+			mMetrics.recordTime(Timer.LOAD, ImageSourceType.MEMORY, System.nanoTime() - start);
+			mCacheParams.binder.displayImage(view, bitmap, ImageSourceType.MEMORY);
+			return;
+		}
+
+		mMetrics.increment(Counter.MEMORY_MISSES);
+		if (!displayPreview(view, request, source)
+				&& (thumbnailSource == null || !displayPreview(view, request, thumbnailSource))) {
+			mCacheParams.binder.displayStub(view, mCacheParams.stubResId);
+			if (thumbnailSource != null && !thumbnailSource.equals(source)) {
+				final CacheKey thumbnailKey = new CacheKey(thumbnailSource, width, height,
+						mTransformationKey, getOptionsKey(options));
+				sMemoryCache.acquireKey(thumbnailKey);
+				request.mPreviewKey = thumbnailKey;
+				submitLoadImageTask(thumbnailKey, thumbnailSource, width, height, priority,
+						options, new ViewTarget(view, request, true));
+			}
+		}
+		submitLoadImageTask(key, source, width, height, imagePriority, options,
+				new ViewTarget(view, request, false));
+	}
+
+	/**
+	 * Displays the largest bitmap of the source from memory cache.
+	 * 
+	 * @return false if memory cache has no bitmaps of the source
+	 */
+	private boolean displayPreview(final View view, final ViewRequest request,
+			final String source) {
+		final CacheKey previewKey = sMemoryCache.getLargestKey(source, mTransformationKey);
+		if (previewKey == null) {
+			return false;
+		}
+		sMemoryCache.acquireKey(previewKey);
+		final Bitmap bitmap = sMemoryCache.getBitmapFromCache(previewKey);
+		if (bitmap == null) {
+			sMemoryCache.releaseKey(previewKey);
+			return false;
+		}
+		request.mPreviewKey = previewKey;
+		mCacheParams.binder.displayImage(view, bitmap, ImageSourceType.MEMORY);
+		return true;
+	}
+
+	/**
+	 * Binds the key to the view, releasing the keys of the previous request
+	 * and cancelling its loading.
+	 * 
+	 * @return request of the view or null if the key is already bound to it
+	 */
+	private ViewRequest bindView(final View view, final CacheKey key, final int priority,
+			final ImageOptions options) {
+		ViewRequest request = (ViewRequest) view.getTag(R.id.slothsimageloader_view_request);
+		if (request == null) {
+			request = new ViewRequest();
+			view.setTag(R.id.slothsimageloader_view_request, request);
+			mBoundViews.put(view, request);
+			if (VersionUtils.hasHoneycombMR1()) {
+				addAttachListener(view);
+			}
+		} else if (key.equals(request.mKey) && !request.mReleased) {
+			return null;
+		}
+
+		// Keys of released request are already released
+		final CacheKey previousKey = request.mReleased ? null : request.mKey;
+		final CacheKey previousPreviewKey = request.mReleased ? null : request.mPreviewKey;
+		request.mKey = key;
+		request.mPreviewKey = null;
+		request.mDisplayed = false;
+		request.mReleased = false;
+		request.mPriority = priority;
+		request.mOptions = options;
+		// Only UI thread changes the generation
+		request.mGeneration++;
+		sMemoryCache.acquireKey(key);
+		releaseKeys(view, previousKey, previousPreviewKey);
+
+		return request;
+	}
+
+	private void releaseKeys(final View view, final CacheKey key, final CacheKey previewKey) {
+		if (key != null) {
+			sMemoryCache.releaseKey(key);
+			cancelLoadImageTask(key, view);
+		}
+		if (previewKey != null) {
+			sMemoryCache.releaseKey(previewKey);
+			cancelLoadImageTask(previewKey, view);
+		}
+	}
+
+	/**
+	 * Releases keys of the view and cancels its loading, the key of the
+	 * request is kept to restore the image.
+	 */
+	private void releaseView(final View view) {
+		final ViewRequest request = (ViewRequest) view
+				.getTag(R.id.slothsimageloader_view_request);
+		if (request == null || request.mReleased) {
 			return;
 		}
 
-		mViews.put(view, source);
-		final Bitmap bitmap = sMemoryCache.getBitmapFromCache(source);
+		final CacheKey previewKey = request.mPreviewKey;
+		request.mPreviewKey = null;
+		request.mReleased = true;
+		request.mGeneration++;
+		releaseKeys(view, request.mKey, previewKey);
+	}
+
+	/**
+	 * Displays the image of the released request again. Its bitmap could be
+	 * reused while the key was released, so it is taken from memory cache or
+	 * loaded again.
+	 */
+	private void restoreView(final View view) {
+		final ViewRequest request = (ViewRequest) view
+				.getTag(R.id.slothsimageloader_view_request);
+		if (request == null || !request.mReleased || request.mKey == null) {
+			return;
+		}
+
+		final CacheKey key = request.mKey;
+		request.mReleased = false;
+		request.mDisplayed = false;
+		request.mGeneration++;
+		sMemoryCache.acquireKey(key);
+		final Bitmap bitmap = sMemoryCache.getBitmapFromCache(key);
 		if (bitmap == null) {
 			mCacheParams.binder.displayStub(view, mCacheParams.stubResId);
-			mExecutorService.submit(new LoadImageTask(source, view));
+			submitLoadImageTask(key, key.source, key.width, key.height, request.mPriority,
+					request.mOptions, new ViewTarget(view, request, false));
 		} else {
 			mCacheParams.binder.displayImage(view, bitmap, ImageSourceType.MEMORY);
 		}
 	}
 
+	/**
+	 * Downloads images into disk cache without decoding them.
+	 * 
+	 * @see #prefetch(Collection, PrefetchMode, int, int)
+	 */
+	public PrefetchGroup prefetch(final Collection<String> sources) {
+		return prefetch(sources, PrefetchMode.DISK_ONLY);
+	}
+
+	/**
+	 * Images are decoded in the size of the screen in
+	 * {@link PrefetchMode#MEMORY_AND_DISK} mode.
+	 * 
+	 * @see #prefetch(Collection, PrefetchMode, int, int)
+	 */
+	public PrefetchGroup prefetch(final Collection<String> sources,
+			final PrefetchMode mode) {
+		final DisplayMetrics metrics = mCacheParams.context.getResources()
+				.getDisplayMetrics();
+		return prefetch(sources, mode, metrics.widthPixels, metrics.heightPixels);
+	}
+
+	/**
+	 * Warms up caches with images which are going to be shown soon. Prefetch
+	 * runs with the lowest priority, skips images which are already cached and
+	 * stops when memory is low or network is metered. Images are put in memory
+	 * cache with the given size in {@link PrefetchMode#MEMORY_AND_DISK} mode.
+	 * 
+	 * @return group which can be used to cancel the prefetch
+	 */
+	public PrefetchGroup prefetch(final Collection<String> sources,
+			final PrefetchMode mode, final int width, final int height) {
+		return prefetch(sources, mode, width, height, mCacheParams.imageOptions);
+	}
+
+	/**
+	 * Same as {@link #prefetch(Collection, PrefetchMode, int, int)} with
+	 * options which override the ones of the loader.
+	 */
+	public PrefetchGroup prefetch(final Collection<String> sources,
+			final PrefetchMode mode, final int width, final int height,
+			final ImageOptions options) {
+		final PrefetchGroup group = new PrefetchGroup();
+		if (mMemoryPressure) {
+			return group;
+		}
+		final boolean decode = mode == PrefetchMode.MEMORY_AND_DISK;
+		for (String source : sources) {
+			if (!decode && getFetcher(source) instanceof LocalFetcher) {
+				// Local images are not put in disk cache
+				continue;
+			}
+			final CacheKey key = decode ? new CacheKey(source, width, height,
+					mTransformationKey, getOptionsKey(options)) : CacheKey.forOriginal(source);
+			if (decode && sMemoryCache.getBitmapFromCache(key) != null) {
+				continue;
+			}
+
+			synchronized (mTasksInProgress) {
+				LoadImageTask task = mTasksInProgress.get(key);
+				if (task == null) {
+					task = new LoadImageTask(key, source, width, height,
+							PrioritizedTask.PRIORITY_LOW, options, decode);
+					mTasksInProgress.put(key, task);
+					task.getExecutor().execute(task);
+				}
+				task.addPrefetchGroup(group);
+				group.mTasks.add(task);
+			}
+		}
+
+		return group;
+	}
+
+	/**
+	 * Stops starting new loads until {@link #resume()} is called, e.g. while
+	 * list is flinging. Loads which are already running are not affected.
+	 */
+	public void pause() {
+		mDiskExecutor.pause();
+		mNetworkExecutor.pause();
+		mDecodeExecutor.pause();
+	}
+
+	public void resume() {
+		mDiskExecutor.resume();
+		mNetworkExecutor.resume();
+		mDecodeExecutor.resume();
+	}
+
+	/**
+	 * Returns current values of loader counters and latency histograms
+	 * together with executor queue sizes.
+	 */
+	public MetricsSnapshot getMetricsSnapshot() {
+		return mMetrics.snapshot(mDiskExecutor.getQueue().size(), mNetworkExecutor
+				.getQueue().size() + mHostLimiter.getParkedCount(), mDecodeExecutor.getQueue()
+				.size(), mDiskCache.getLockWaitNanos());
+	}
+
+	private void releaseHost(final String host) {
+		executeParked(mHostLimiter.release(host));
+	}
+
+	private void executeParked(final PrioritizedTask task) {
+		if (task != null) {
+			mNetworkExecutor.execute(task);
+		}
+	}
+
 	public void clearCache() {
 		sMemoryCache.evictAll();
+		if (mEncodedCache != null) {
+			mEncodedCache.evictAll();
+		}
 		mDiskCache.clearCacheAsync();
 	}
 
@@ -71,10 +670,52 @@ public class SlothsImageLoader {
 		mDiskCache.flushAsync();
 	}
 
+	/**
+	 * Releases views bound by the loader, cancels loading, stops its threads
+	 * and closes disk cache. Must be called from UI thread.
+	 */
 	public void close() {
+		for (Map.Entry<View, ViewRequest> entry : mBoundViews.entrySet()) {
+			final View view = entry.getKey();
+			final ViewRequest request = entry.getValue();
+			if (!request.mReleased) {
+				request.mReleased = true;
+				request.mGeneration++;
+				releaseKeys(view, request.mKey, request.mPreviewKey);
+			}
+			if (VersionUtils.hasHoneycombMR1()) {
+				removeAttachListener(view);
+			}
+			view.setTag(R.id.slothsimageloader_view_request, null);
+		}
+		mBoundViews.clear();
+		synchronized (mTasksInProgress) {
+			for (LoadImageTask task : mTasksInProgress.values()) {
+				task.cancel();
+			}
+			mTasksInProgress.clear();
+		}
+		// Threads are not interrupted, interrupt closes file channels of disk
+		// stores they are using
+		shutDown(mDiskExecutor);
+		shutDown(mNetworkExecutor);
+		shutDown(mDecodeExecutor);
+		mHandler.removeCallbacks(mRestoreMemoryTask);
+		if (VersionUtils.hasIceCreamSandwich()) {
+			unregisterMemoryCallbacks();
+		}
 		mDiskCache.closeAsync();
 	}
 
+	/**
+	 * Queued tasks are cancelled, so they finish right away. Paused executor
+	 * is resumed, otherwise its threads would wait forever.
+	 */
+	private static void shutDown(final PriorityExecutor executor) {
+		executor.resume();
+		executor.shutdown();
+	}
+
 	public static void setMemoryCacheSize(final int cacheSize) {
 		MemoryCache.setCacheSize(cacheSize);
 	}
@@ -88,113 +729,859 @@ public class SlothsImageLoader {
 		MemoryCache.setCacheSize(cacheSize);
 	}
 
-	private boolean isViewBusy(final View view, final String source) {
-		final String value = mViews.get(view);
+	/**
+	 * Sets eviction policy of memory cache shared by all loaders, by default
+	 * {@link EvictionPolicy#TINY_LFU}. Memory cache is emptied.
+	 */
+	public static void setMemoryCacheEvictionPolicy(final EvictionPolicy policy) {
+		sMemoryCache.setEvictionPolicy(policy);
+	}
+
+	/**
+	 * Only one task per cache key is executed at a time. If the image is
+	 * already being loaded the view is attached to the running task and gets
+	 * the result together with other waiting views.
+	 */
+	private void submitLoadImageTask(final CacheKey key, final String source,
+			final int width, final int height, final int priority,
+			final ImageOptions options, final ViewTarget target) {
+		synchronized (mTasksInProgress) {
+			LoadImageTask task = mTasksInProgress.get(key);
+			if (task == null) {
+				task = new LoadImageTask(key, source, width, height, priority, options, true);
+				mTasksInProgress.put(key, task);
+				task.getExecutor().execute(task);
+			} else {
+				// Newly requested image goes first among queued ones
+				task.reschedule(Math.max(priority, task.getPriority()));
+			}
+			task.addView(target);
+		}
+	}
+
+	/**
+	 * Lock is taken only if the task has to be removed, so rebinding a view
+	 * does not wait for workers.
+	 */
+	private void cancelLoadImageTask(final CacheKey key, final View view) {
+		final LoadImageTask task = mTasksInProgress.get(key);
+		if (task != null) {
+			task.removeView(view);
+			removeIfNotRequested(task);
+		}
+	}
+
+	private void cancelPrefetchGroup(final PrefetchGroup group) {
+		for (LoadImageTask task : group.mTasks) {
+			task.removePrefetchGroup(group);
+			removeIfNotRequested(task);
+		}
+		group.mTasks.clear();
+	}
+
+	private void removeIfNotRequested(final LoadImageTask task) {
+		if (task.isRequested()) {
+			return;
+		}
+		synchronized (mTasksInProgress) {
+			// Views are attached while holding the lock, so the check is
+			// repeated under it
+			if (!task.isRequested() && mTasksInProgress.get(task.mKey) == task) {
+				mTasksInProgress.remove(task.mKey);
+				task.cancel();
+			}
+		}
+	}
+
+	private boolean isPrefetchAllowed(final Stage stage) {
+		if (mMemoryPressure) {
+			return false;
+		}
+		if (stage == Stage.NETWORK) {
+			return !DeviceUtils.isActiveNetworkMetered(mCacheParams.context);
+		} else if (stage == Stage.DECODE) {
+			return !DeviceUtils.isLowMemory(mCacheParams.context);
+		}
+		return true;
+	}
+
+	private static int getTargetWidth(final View view) {
+		int width = view.getWidth();
+		if (width <= 0) {
+			final LayoutParams params = view.getLayoutParams();
+			width = params != null ? params.width : 0;
+		}
+		if (width <= 0) {
+			width = view.getResources().getDisplayMetrics().widthPixels;
+		}
 
-		return value != null && !value.equals(source);
+		return width;
 	}
 
-	private boolean isSameTaskExecuted(final View view, final String imageSource) {
-		final String value = mViews.get(view);
+	private static int getTargetHeight(final View view) {
+		int height = view.getHeight();
+		if (height <= 0) {
+			final LayoutParams params = view.getLayoutParams();
+			height = params != null ? params.height : 0;
+		}
+		if (height <= 0) {
+			height = view.getResources().getDisplayMetrics().heightPixels;
+		}
+
+		return height;
+	}
 
-		return value != null && value.equals(imageSource);
+	/**
+	 * Sets max size in bytes of the pool of bitmaps evicted from memory cache
+	 * which are reused for decoding.
+	 */
+	public static void setBitmapPoolSize(final int poolSize) {
+		sMemoryCache.getBitmapPool().setMaxSize(poolSize);
+	}
+
+	public static void trimBitmapPool(final int size) {
+		sMemoryCache.getBitmapPool().trimToSize(size);
+	}
+
+	/**
+	 * Current request of the view, kept as a tag of the view. Every new
+	 * request changes the generation, so workers find out that the view was
+	 * rebound without locking.
+	 */
+	private static final class ViewRequest {
+		private volatile CacheKey mKey;
+		private volatile int mGeneration;
+		// Key of the preview shown until the image is loaded, null if none
+		private CacheKey mPreviewKey;
+		// Image is displayed, previews loaded later are skipped
+		private volatile boolean mDisplayed;
+		// Keys are released while the view is detached
+		private boolean mReleased;
+		// Used to load the image again when the view is attached
+		private int mPriority;
+		private ImageOptions mOptions;
 	}
 
-	private class LoadImageTask implements Runnable {
-		private static final int BUFFER_SIZE = 8192;
-		private View mView;
+	/**
+	 * View waiting for a task with generation of its request at the moment
+	 * the task was requested.
+	 */
+	private static final class ViewTarget {
+		private final View mView;
+		private final ViewRequest mRequest;
+		private final int mGeneration;
+		private final boolean mPreview;
+
+		public ViewTarget(final View view, final ViewRequest request, final boolean preview) {
+			mView = view;
+			mRequest = request;
+			mGeneration = request.mGeneration;
+			mPreview = preview;
+		}
+
+		private boolean isActive() {
+			return mRequest.mGeneration == mGeneration
+					&& !(mPreview && mRequest.mDisplayed);
+		}
+	}
+
+	/**
+	 * Looks up encoded memory cache before disk cache, disk cache entries
+	 * are put in it.
+	 */
+	private DiskEntry getEncodedEntry(final CacheKey key) {
+		if (mEncodedCache != null) {
+			final DiskEntry entry = mEncodedCache.get(key);
+			if (entry != null) {
+				mMetrics.increment(Counter.ENCODED_MEMORY_HITS);
+				return entry;
+			}
+		}
+		final DiskEntry entry = mDiskCache.getEntryFromDisk(key);
+		if (entry != null && mEncodedCache != null) {
+			mEncodedCache.put(key, entry);
+		}
+
+		return entry;
+	}
+
+	private void putEncodedEntry(final CacheKey key, final DiskEntry entry) {
+		mDiskCache.putEntryInCache(key, entry);
+		if (mEncodedCache != null) {
+			mEncodedCache.put(key, entry);
+		}
+	}
+
+	/**
+	 * Task of one requested size. Transformed image of this size is looked
+	 * up on disk first, otherwise the task waits for {@link SourceTask} of
+	 * its source, which is shared by all sizes, and decodes its data. Local
+	 * images are decoded in place and skip disk and network stages.
+	 */
+	private class LoadImageTask extends PrioritizedTask {
+		// Waiter lists are read and removed from without locking
+		private final List<ViewTarget> mTargetViews = new CopyOnWriteArrayList<ViewTarget>();
+		private final CacheKey mKey;
+		private final CacheKey mOriginalKey;
 		public String mSource;
+		private final int mWidth;
+		private final int mHeight;
+		private final ImageOptions mOptions;
+		private volatile boolean mCancelled;
+		private final Fetcher mFetcher;
+		private volatile Stage mStage;
+		// Task which loads encoded image, null until the task joins it
+		private volatile SourceTask mSourceTask;
+		private volatile ImageSourceType mSourceType;
+		private volatile byte[] mData;
+		// Freshness of the original image, transformed image inherits it
+		private volatile long mExpires = DiskEntry.NEVER_EXPIRES;
+		// False if the original image must not be written to disk
+		private volatile boolean mStorable = true;
+		// Data is a transformed image from disk cache
+		private volatile boolean mTransformed;
+		// Task which does not decode only puts image in disk cache
+		private final boolean mDecode;
+		private final List<PrefetchGroup> mPrefetchGroups = new CopyOnWriteArrayList<PrefetchGroup>();
+		private final long mRequestTime = System.nanoTime();
 
-		public LoadImageTask(final String url, final View view) {
+		public LoadImageTask(final CacheKey key, final String url, final int width,
+				final int height, final int priority, final ImageOptions options,
+				final boolean decode) {
+			super(priority);
+			mKey = key;
+			mOriginalKey = CacheKey.forOriginal(url);
 			mSource = url;
-			mView = view;
-			;
+			mWidth = width;
+			mHeight = height;
+			mOptions = options;
+			mDecode = decode;
+			mFetcher = getFetcher(url);
+			mStage = mFetcher instanceof LocalFetcher ? Stage.DECODE : Stage.DISK;
+		}
+
+		private PriorityExecutor getExecutor() {
+			switch (mStage) {
+			case NETWORK:
+				return mNetworkExecutor;
+			case DECODE:
+				return mDecodeExecutor;
+			default:
+				return mDiskExecutor;
+			}
+		}
+
+		private void moveToStage(final Stage stage) {
+			mStage = stage;
+			getExecutor().execute(this);
+		}
+
+		/**
+		 * Raises priority of the task and of its source task, so the
+		 * following stages run with it as well.
+		 */
+		private void reschedule(final int priority) {
+			if (priority > getPriority()) {
+				getExecutor().reschedule(this, priority);
+			}
+			final SourceTask sourceTask = mSourceTask;
+			if (sourceTask != null) {
+				sourceTask.reschedule(priority);
+			}
+		}
+
+		// Must be called while holding mTasksInProgress lock
+		private void addView(final ViewTarget target) {
+			mTargetViews.add(target);
+		}
+
+		private void removeView(final View view) {
+			for (ViewTarget target : mTargetViews) {
+				if (target.mView == view) {
+					mTargetViews.remove(target);
+				}
+			}
+		}
+
+		// Must be called while holding mTasksInProgress lock
+		private void addPrefetchGroup(final PrefetchGroup group) {
+			mPrefetchGroups.add(group);
+		}
+
+		private void removePrefetchGroup(final PrefetchGroup group) {
+			mPrefetchGroups.remove(group);
+		}
+
+		private boolean isRequested() {
+			return !mTargetViews.isEmpty() || !mPrefetchGroups.isEmpty();
+		}
+
+		/**
+		 * Removes the task from the queue and leaves its source task, which
+		 * is cancelled if no other task waits for it. Must be called while
+		 * holding mTasksInProgress lock.
+		 */
+		private void cancel() {
+			mCancelled = true;
+			getExecutor().remove(this);
+			final SourceTask sourceTask = mSourceTask;
+			if (sourceTask != null) {
+				sourceTask.removeConsumer(this);
+			}
 		}
 
 		@Override
 		public void run() {
-			if (isViewBusy(mView, mSource))
+			if (mCancelled) {
+				finish();
+				return;
+			}
+			if (!hasWaitingViews()) {
+				if (!isPrefetched()) {
+					finish();
+					return;
+				}
+				if (!isPrefetchAllowed(mStage)) {
+					cancelPrefetchGroups();
+					return;
+				}
+			}
+
+			// Failed task is removed from the map, otherwise later requests of
+			// the key would wait for it forever
+			boolean completed = false;
+			try {
+				switch (mStage) {
+				case DECODE:
+					decode();
+					break;
+				default:
+					lookUpDisk();
+					break;
+				}
+				completed = true;
+			} finally {
+				if (!completed) {
+					finish();
+				}
+			}
+		}
+
+		private void lookUpDisk() {
+			if (mDecode && mStoreTransformed) {
+				final long start = System.nanoTime();
+				final DiskEntry transformed = getEncodedEntry(mKey);
+				if (transformed != null && transformed.isFresh(System.currentTimeMillis())) {
+					mData = transformed.data;
+					mTransformed = true;
+					mMetrics.increment(Counter.DISK_HITS);
+					mMetrics.recordTime(Timer.DISK_READ, ImageSourceType.DISK,
+							System.nanoTime() - start);
+					mSourceType = ImageSourceType.DISK;
+					moveToStage(Stage.DECODE);
+					return;
+				}
+			}
+
+			joinSourceTask();
+		}
+
+		/**
+		 * Waits for the task which loads the source, it is started if no
+		 * other size of the source is being loaded.
+		 */
+		private void joinSourceTask() {
+			synchronized (mTasksInProgress) {
+				if (mCancelled) {
+					return;
+				}
+				SourceTask sourceTask = mSourceTasks.get(mOriginalKey);
+				if (sourceTask == null) {
+					sourceTask = new SourceTask(mOriginalKey, mSource, mFetcher, getPriority());
+					mSourceTasks.put(mOriginalKey, sourceTask);
+					sourceTask.getExecutor().execute(sourceTask);
+				} else {
+					sourceTask.reschedule(getPriority());
+				}
+				sourceTask.addConsumer(this);
+				mSourceTask = sourceTask;
+			}
+		}
+
+		/**
+		 * Called by the source task when it is finished.
+		 * 
+		 * @param entry
+		 *            encoded image, null if it is not loaded or not needed
+		 */
+		private void onSourceLoaded(final DiskEntry entry, final ImageSourceType sourceType) {
+			if (mCancelled || entry == null || !mDecode) {
+				finish();
 				return;
+			}
+			mData = entry.data;
+			mExpires = entry.expires;
+			mStorable = entry.storable;
+			mSourceType = sourceType;
+			moveToStage(Stage.DECODE);
+		}
+
+		private boolean wantsData() {
+			return mDecode && !mCancelled;
+		}
 
-			ImageSourceType sourceType = ImageSourceType.DISK;
-			Bitmap bitmap = mDiskCache.getBitmapFromDisk(mSource);
+		private void decode() {
+			final long start = System.nanoTime();
+			Bitmap bitmap;
+			if (mFetcher instanceof LocalFetcher) {
+				mSourceType = ImageSourceType.LOCAL;
+				bitmap = decodeLocal((LocalFetcher) mFetcher);
+			} else {
+				bitmap = BitmapUtils.decodeSampledBitmap(mData, mWidth, mHeight,
+						sMemoryCache.getBitmapPool(), mOptions.config);
+			}
+			mData = null;
 			if (bitmap == null) {
-				bitmap = loadBitmap(mSource);
-				sourceType = ImageSourceType.NETWORK;
+				mMetrics.increment(Counter.DECODE_FAILURES);
+			} else {
+				mMetrics.increment(Counter.DECODES);
+				mMetrics.recordTime(Timer.DECODE, mSourceType, System.nanoTime() - start);
+				if (!mTransformed && mTransformationKey != null) {
+					bitmap = transform(bitmap);
+					if (bitmap != null && mStoreTransformed && mStorable
+							&& !(mFetcher instanceof LocalFetcher)) {
+						mDiskCache.putBitmapInCache(mKey, bitmap, mOptions.format,
+								mOptions.quality, mExpires);
+					}
+				}
+				if (bitmap != null) {
+					saveBitmapToCache(mKey, bitmap);
+				}
 			}
 
+			// Views attached after this point will find the bitmap in memory cache
+			final List<ViewTarget> targets = finish();
 			if (bitmap != null) {
-				if (mCacheParams.postProcess != null) {
-					bitmap = mCacheParams.postProcess.onPostProcess(bitmap);
+				mMetrics.recordTime(Timer.LOAD, mSourceType, System.nanoTime()
+						- mRequestTime);
+				for (ViewTarget target : targets) {
+					if (target.isActive()) {
+						mHandler.post(new DisplayImageTask(bitmap, target, mSourceType));
+					}
 				}
-				saveBitmapToCache(mSource, bitmap);
+			}
+		}
 
-				if (isViewBusy(mView, mSource))
-					return;
+		private boolean hasWaitingViews() {
+			for (ViewTarget target : mTargetViews) {
+				if (target.isActive()) {
+					return true;
+				}
+			}
+
+			return false;
+		}
 
-				mHandler.post(new DisplayImageTask(bitmap, mView, mSource, sourceType));
+		private boolean isPrefetched() {
+			for (PrefetchGroup group : mPrefetchGroups) {
+				if (!group.isCancelled()) {
+					return true;
+				}
 			}
+
+			return false;
 		}
 
-		private void saveBitmapToCache(final String url, final Bitmap bitmap) {
-			if (sMemoryCache.getBitmapFromCache(url) == null) {
-				sMemoryCache.putBitmapInCache(url, bitmap);
+		private void cancelPrefetchGroups() {
+			for (PrefetchGroup group : mPrefetchGroups) {
+				group.cancel();
 			}
+			finish();
+		}
 
-			mDiskCache.putBitmapInCache(url, bitmap);
+		/**
+		 * @return views attached before the task was removed from the map
+		 */
+		private List<ViewTarget> finish() {
+			synchronized (mTasksInProgress) {
+				// Cancelled task could be already replaced by a new one
+				if (mTasksInProgress.get(mKey) == this) {
+					mTasksInProgress.remove(mKey);
+				}
+			}
+			return new ArrayList<ViewTarget>(mTargetViews);
 		}
 
-		private Bitmap loadBitmap(final String imageSource) {
-			disableConnectionReuseIfNecessary();
-			Bitmap bitmap = null;
-			HttpURLConnection connection = null;
-			try {
-				final URL url = new URL(imageSource);
-				connection = (HttpURLConnection) url.openConnection();
-				connection.setConnectTimeout(mCacheParams.connectionTimeout);
-				connection.setReadTimeout(mCacheParams.readTimeout);
-				if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-					final BufferedInputStream bis = new BufferedInputStream(
-							new FlushedInputStream(connection.getInputStream()),
-							BUFFER_SIZE);
-					bitmap = BitmapFactory.decodeStream(bis);
+		/**
+		 * Intermediate bitmaps are put in bitmap pool, except ones passed to
+		 * post process listener which may keep them.
+		 */
+		private Bitmap transform(final Bitmap bitmap) {
+			Bitmap result = bitmap;
+			for (Transformation transformation : mTransformations) {
+				final Bitmap transformed = transformation.transform(result);
+				if (transformed != result
+						&& !(transformation instanceof PostProcessTransformation)) {
+					sMemoryCache.getBitmapPool().put(result);
 				}
-			} catch (MalformedURLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				result = transformed;
+				if (result == null) {
+					break;
+				}
+			}
+
+			return result;
+		}
+
+		private void saveBitmapToCache(final CacheKey key, final Bitmap bitmap) {
+			sMemoryCache.putBitmapInCache(key, bitmap);
+		}
+
+		private Bitmap decodeLocal(final LocalFetcher fetcher) {
+			AssetFileDescriptor fd = null;
+			try {
+				fd = fetcher.open(mSource);
+				return BitmapUtils.decodeSampledBitmap(fd, mWidth, mHeight,
+						sMemoryCache.getBitmapPool(), mOptions.config);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
 			} finally {
-				if (connection != null) {
-					connection.disconnect();
+				try {
+					if (fd != null) {
+						fd.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 			}
 
-			return bitmap;
+			return null;
+		}
+	}
+
+	/**
+	 * Loads encoded image of a source from disk cache or network once for
+	 * all sizes of it requested at the same time. Expired disk entry is
+	 * revalidated with a conditional request, it is also used when the
+	 * download fails.
+	 */
+	private class SourceTask extends PrioritizedTask {
+		// Tasks of requested sizes
+		private final List<LoadImageTask> mConsumers = new CopyOnWriteArrayList<LoadImageTask>();
+		private final CacheKey mOriginalKey;
+		private final String mSource;
+		private final Fetcher mFetcher;
+		private volatile boolean mCancelled;
+		private final Cancellation mCancellation = new Cancellation();
+		private volatile Stage mStage = Stage.DISK;
+		// Expired disk entry which is revalidated by the download
+		private volatile DiskEntry mStaleEntry;
+		private volatile boolean mFinished;
+
+		public SourceTask(final CacheKey originalKey, final String source,
+				final Fetcher fetcher, final int priority) {
+			super(priority);
+			mOriginalKey = originalKey;
+			mSource = source;
+			mFetcher = fetcher;
+		}
+
+		private PriorityExecutor getExecutor() {
+			return mStage == Stage.NETWORK ? mNetworkExecutor : mDiskExecutor;
+		}
+
+		private void moveToStage(final Stage stage) {
+			mStage = stage;
+			getExecutor().execute(this);
+		}
+
+		/**
+		 * Raises priority of the task whether it is queued, parked by host
+		 * limiter or running.
+		 */
+		private void reschedule(final int priority) {
+			if (priority <= getPriority()) {
+				return;
+			}
+			if (mStage == Stage.NETWORK) {
+				final String host = getHost();
+				if (host != null && mHostLimiter.reschedule(host, this, priority)) {
+					return;
+				}
+			}
+			getExecutor().reschedule(this, priority);
+		}
+
+		/**
+		 * Removes the task from host limiter if it is parked or woken, a
+		 * woken task passes its slot on. Does nothing if the task is not
+		 * parked.
+		 */
+		private void leaveHost() {
+			if (mStage != Stage.NETWORK) {
+				return;
+			}
+			final String host = getHost();
+			if (host != null) {
+				executeParked(mHostLimiter.remove(host, this));
+			}
+		}
+
+		// Must be called while holding mTasksInProgress lock
+		private void addConsumer(final LoadImageTask task) {
+			mConsumers.add(task);
+		}
+
+		/**
+		 * Cancels the task when the last consumer leaves. Must be called
+		 * while holding mTasksInProgress lock.
+		 */
+		private void removeConsumer(final LoadImageTask task) {
+			mConsumers.remove(task);
+			if (mConsumers.isEmpty()) {
+				if (mSourceTasks.get(mOriginalKey) == this) {
+					mSourceTasks.remove(mOriginalKey);
+				}
+				mCancelled = true;
+				getExecutor().remove(this);
+				mCancellation.cancel();
+				leaveHost();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled) {
+				leaveHost();
+				return;
+			}
+			final List<LoadImageTask> consumers = mConsumers;
+			boolean viewsWaiting = false;
+			boolean prefetched = false;
+			for (LoadImageTask consumer : consumers) {
+				if (consumer.hasWaitingViews()) {
+					viewsWaiting = true;
+					break;
+				}
+				prefetched |= consumer.isPrefetched();
+			}
+			if (!viewsWaiting) {
+				if (!prefetched) {
+					finish(null, null);
+					return;
+				}
+				if (!isPrefetchAllowed(mStage)) {
+					for (LoadImageTask consumer : consumers) {
+						consumer.cancelPrefetchGroups();
+					}
+					finish(null, null);
+					return;
+				}
+			}
+
+			boolean completed = false;
+			try {
+				if (mStage == Stage.NETWORK) {
+					download();
+				} else {
+					lookUpDisk(consumers);
+				}
+				completed = true;
+			} finally {
+				// Consumers are not notified twice if one of them failed
+				if (!completed && !mFinished) {
+					finish(null, null);
+				}
+			}
+		}
+
+		/**
+		 * Stale entry is revalidated before it is used. If no consumer
+		 * decodes the data, e.g. for disk only prefetch, the entry is read
+		 * only to check its freshness and is not put in encoded memory cache.
+		 */
+		private void lookUpDisk(final List<LoadImageTask> consumers) {
+			boolean dataWanted = false;
+			for (LoadImageTask consumer : consumers) {
+				dataWanted |= consumer.wantsData();
+			}
+
+			final long start = System.nanoTime();
+			final DiskEntry entry = dataWanted ? getEncodedEntry(mOriginalKey) : mDiskCache
+					.getEntryFromDisk(mOriginalKey);
+			if (entry != null && !entry.isFresh(System.currentTimeMillis())) {
+				mStaleEntry = entry;
+				mMetrics.increment(Counter.DISK_MISSES);
+				moveToStage(Stage.NETWORK);
+			} else if (entry != null) {
+				mMetrics.increment(Counter.DISK_HITS);
+				mMetrics.recordTime(Timer.DISK_READ, ImageSourceType.DISK,
+						System.nanoTime() - start);
+				finish(entry, ImageSourceType.DISK);
+			} else {
+				mMetrics.increment(Counter.DISK_MISSES);
+				moveToStage(Stage.NETWORK);
+			}
+		}
+
+		private void download() {
+			final String host = getHost();
+			if (host != null && !mHostLimiter.acquire(host, this)) {
+				// Executed again when a download from the same host finishes
+				return;
+			}
+			final long start = System.nanoTime();
+			final DiskEntry staleEntry = mStaleEntry;
+			mStaleEntry = null;
+			final DiskEntry entry;
+			try {
+				entry = fetch(staleEntry);
+			} finally {
+				if (host != null) {
+					releaseHost(host);
+				}
+			}
+			if (entry != null && staleEntry != null && entry.data == staleEntry.data) {
+				mMetrics.increment(Counter.NOT_MODIFIED);
+				putEncodedEntry(mOriginalKey, entry);
+				finish(entry, ImageSourceType.DISK);
+			} else if (entry != null) {
+				mMetrics.increment(Counter.DOWNLOADS);
+				mMetrics.add(Counter.BYTES_DOWNLOADED, entry.data.length);
+				final long time = System.nanoTime() - start;
+				mMetrics.recordTime(Timer.DOWNLOAD, ImageSourceType.NETWORK, time);
+				if (mNetworkConcurrency != null) {
+					mNetworkConcurrency.onSuccess(time, entry.data.length);
+				}
+				putEncodedEntry(mOriginalKey, entry);
+				finish(entry, ImageSourceType.NETWORK);
+			} else if (!mCancelled && staleEntry != null) {
+				mMetrics.increment(Counter.DOWNLOAD_FAILURES);
+				finish(staleEntry, ImageSourceType.DISK);
+			} else {
+				if (!mCancelled) {
+					mMetrics.increment(Counter.DOWNLOAD_FAILURES);
+				}
+				finish(null, null);
+			}
+		}
+
+		/**
+		 * Passes the result to consumers which joined before this point,
+		 * later ones start a new source task.
+		 */
+		private void finish(final DiskEntry entry, final ImageSourceType sourceType) {
+			mFinished = true;
+			leaveHost();
+			synchronized (mTasksInProgress) {
+				if (mSourceTasks.get(mOriginalKey) == this) {
+					mSourceTasks.remove(mOriginalKey);
+				}
+			}
+			for (LoadImageTask consumer : mConsumers) {
+				consumer.onSourceLoaded(entry, sourceType);
+			}
+		}
+
+		/**
+		 * @return downloaded entry, stale entry with updated freshness if the
+		 *         server responded 304, or null if download failed or the task
+		 *         is cancelled
+		 */
+		private DiskEntry fetch(final DiskEntry staleEntry) {
+			if (!(mFetcher instanceof NetworkFetcher)) {
+				return null;
+			}
+			if (staleEntry != null) {
+				mMetrics.increment(Counter.REVALIDATIONS);
+			}
+			try {
+				return ((NetworkFetcher) mFetcher).fetch(mSource, staleEntry, mCancellation);
+			} catch (IOException e) {
+				if (!mCancelled) {
+					e.printStackTrace();
+					if (mNetworkConcurrency != null) {
+						mNetworkConcurrency.onFailure();
+					}
+				}
+			}
+
+			return null;
+		}
+
+		private String getHost() {
+			try {
+				return new URL(mSource).getHost();
+			} catch (MalformedURLException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Handle of images requested by one prefetch call.
+	 */
+	public final class PrefetchGroup {
+		private final List<LoadImageTask> mTasks = new CopyOnWriteArrayList<LoadImageTask>();
+		private volatile boolean mCancelled;
+
+		private PrefetchGroup() {
+		}
+
+		/**
+		 * Cancels loading of images which are not requested by views or other
+		 * prefetch groups.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			cancelPrefetchGroup(this);
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+	}
+
+	private static class PostProcessTransformation implements Transformation {
+		private final OnPostProcessListener mListener;
+
+		public PostProcessTransformation(final OnPostProcessListener listener) {
+			mListener = listener;
+		}
+
+		@Override
+		public String getKey() {
+			return "post-process@" + Integer.toHexString(System.identityHashCode(mListener));
+		}
+
+		@Override
+		public Bitmap transform(final Bitmap source) {
+			return mListener.onPostProcess(source);
 		}
 	}
 
 	private class DisplayImageTask implements Runnable {
 
-		private View mView;
+		private ViewTarget mTarget;
 		private Bitmap mBitmap;
-		private String mSource;
 		private ImageSourceType mSourceType;
 
-		public DisplayImageTask(final Bitmap bitmap, final View view,
-				final String source, final ImageSourceType sourceType) {
+		public DisplayImageTask(final Bitmap bitmap, final ViewTarget target,
+				final ImageSourceType sourceType) {
 			mBitmap = bitmap;
-			mView = view;
-			mSource = source;
+			mTarget = target;
+			mSourceType = sourceType;
 		}
 
 		@Override
 		public void run() {
-			if (isViewBusy(mView, mSource))
+			if (!mTarget.isActive())
 				return;
 
-			mCacheParams.binder.displayImage(mView, mBitmap, mSourceType);
+			if (!mTarget.mPreview) {
+				mTarget.mRequest.mDisplayed = true;
+			}
+			mCacheParams.binder.displayImage(mTarget.mView, mBitmap, mSourceType);
 		}
 	}
 
@@ -203,9 +1590,6 @@ public class SlothsImageLoader {
 	 * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
 	 */
 	public static void disableConnectionReuseIfNecessary() {
-		// HTTP connection reuse which was buggy pre-froyo
-		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-			System.setProperty("http.keepAlive", "false");
-		}
+		HttpFetcher.disableConnectionReuseIfNecessary();
 	}
 }
@@ -0,0 +1,142 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import ru.vang.slothsimageloader.utils.BitmapUtils;
+import ru.vang.slothsimageloader.utils.VersionUtils;
+import android.graphics.Bitmap;
+
+/**
+ * Keeps bitmaps which are not used anymore so they can be reused by decoder
+ * through {@link android.graphics.BitmapFactory.Options#inBitmap}. Bitmaps are
+ * grouped in buckets by allocation size, the oldest ones are dropped when pool
+ * grows over its max size.
+ */
+public class BitmapPool {
+	public static final int DEFAULT_POOL_SIZE = 1024 * 1024 * 2;
+
+	private final Map<Integer, LinkedList<Bitmap>> mBuckets = new HashMap<Integer, LinkedList<Bitmap>>();
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+	private int mMaxSize;
+	private int mSize;
+
+	public BitmapPool(final int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Bitmap must not be used anywhere after it is put in the pool.
+	 */
+	public synchronized void put(final Bitmap bitmap) {
+		if (!VersionUtils.hasHoneycomb() || bitmap == null || !bitmap.isMutable()
+				|| bitmap.isRecycled()) {
+			return;
+		}
+		final int byteCount = getAllocationByteCount(bitmap);
+		if (byteCount > mMaxSize) {
+			return;
+		}
+
+		LinkedList<Bitmap> bucket = mBuckets.get(byteCount);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(byteCount, bucket);
+		}
+		bucket.addLast(bitmap);
+		mBitmaps.addLast(bitmap);
+		mSize += byteCount;
+		trimToSize(mMaxSize);
+	}
+
+	/**
+	 * Returns bitmap which can be used as inBitmap to decode an image of the
+	 * given size or null. Before KitKat only bitmap of the same dimensions can
+	 * be reused, after that any bitmap which is big enough.
+	 */
+	public synchronized Bitmap get(final int width, final int height,
+			final Bitmap.Config config) {
+		if (!VersionUtils.hasHoneycomb()) {
+			return null;
+		}
+
+		final int byteCount = width * height * BitmapUtils.getBytesPerPixel(config);
+		if (!VersionUtils.hasKitKat()) {
+			final LinkedList<Bitmap> bucket = mBuckets.get(byteCount);
+			if (bucket != null) {
+				for (Bitmap candidate : bucket) {
+					if (candidate.getWidth() == width && candidate.getHeight() == height
+							&& candidate.getConfig() == config) {
+						remove(candidate, byteCount);
+						return candidate;
+					}
+				}
+			}
+			return null;
+		}
+
+		// Do not waste more than a half of reused bitmap
+		int bestByteCount = Integer.MAX_VALUE;
+		for (Integer bucketByteCount : mBuckets.keySet()) {
+			if (bucketByteCount >= byteCount && bucketByteCount < bestByteCount
+					&& bucketByteCount <= byteCount * 2) {
+				bestByteCount = bucketByteCount;
+			}
+		}
+		if (bestByteCount == Integer.MAX_VALUE) {
+			return null;
+		}
+		final Bitmap candidate = mBuckets.get(bestByteCount).getFirst();
+		remove(candidate, bestByteCount);
+		return candidate;
+	}
+
+	public synchronized void trimToSize(final int maxSize) {
+		final Iterator<Bitmap> iterator = mBitmaps.iterator();
+		while (mSize > maxSize && iterator.hasNext()) {
+			final Bitmap bitmap = iterator.next();
+			iterator.remove();
+			final int byteCount = getAllocationByteCount(bitmap);
+			removeFromBucket(bitmap, byteCount);
+			mSize -= byteCount;
+		}
+	}
+
+	public synchronized void evictAll() {
+		trimToSize(0);
+	}
+
+	public synchronized void setMaxSize(final int maxSize) {
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int maxSize() {
+		return mMaxSize;
+	}
+
+	private void remove(final Bitmap bitmap, final int byteCount) {
+		removeFromBucket(bitmap, byteCount);
+		mBitmaps.remove(bitmap);
+		mSize -= byteCount;
+	}
+
+	private void removeFromBucket(final Bitmap bitmap, final int byteCount) {
+		final LinkedList<Bitmap> bucket = mBuckets.get(byteCount);
+		bucket.remove(bitmap);
+		if (bucket.isEmpty()) {
+			mBuckets.remove(byteCount);
+		}
+	}
+
+	// Reconfigured bitmap may have bigger allocation, so this is a lower bound
+	private static int getAllocationByteCount(final Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
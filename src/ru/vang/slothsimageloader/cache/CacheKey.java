@@ -0,0 +1,105 @@
+package ru.vang.slothsimageloader.cache;
+
+import ru.vang.slothsimageloader.utils.KeyUtils;
+
+/**
+ * Identifies decoded image in memory cache and in-flight requests. Hash code
+ * is computed once and disk key is computed on first use, so the key can be
+ * looked up many times without creating garbage.
+ */
+public final class CacheKey {
+	private static final int ORIGINAL_SIZE = -1;
+
+	public final String source;
+	public final int width;
+	public final int height;
+	/**
+	 * Key of transformations applied to the image, null if there are none
+	 */
+	public final String transformationKey;
+	/**
+	 * Key of decode and storage options, null if they are default
+	 */
+	public final String optionsKey;
+	private final int mHashCode;
+	private volatile String mDiskKey;
+
+	public CacheKey(final String source, final int width, final int height) {
+		this(source, width, height, null, null);
+	}
+
+	public CacheKey(final String source, final int width, final int height,
+			final String transformationKey, final String optionsKey) {
+		this.source = source;
+		this.width = width;
+		this.height = height;
+		this.transformationKey = transformationKey;
+		this.optionsKey = optionsKey;
+		mHashCode = computeHashCode();
+	}
+
+	/**
+	 * Returns key of the original encoded image which is not decoded.
+	 */
+	public static CacheKey forOriginal(final String source) {
+		return new CacheKey(source, ORIGINAL_SIZE, ORIGINAL_SIZE);
+	}
+
+	/**
+	 * Disk cache stores original image, so disk key depends only on source.
+	 * Transformed images are stored at their decoded size, so their disk key
+	 * depends on all fields.
+	 */
+	public String getDiskKey() {
+		String diskKey = mDiskKey;
+		if (diskKey == null) {
+			diskKey = KeyUtils.hashKeyForDisk(transformationKey == null ? source
+					: toString());
+			mDiskKey = diskKey;
+		}
+		return diskKey;
+	}
+
+	private int computeHashCode() {
+		int result = source.hashCode();
+		result = 31 * result + width;
+		result = 31 * result + height;
+		result = 31 * result + (transformationKey == null ? 0 : transformationKey.hashCode());
+		result = 31 * result + (optionsKey == null ? 0 : optionsKey.hashCode());
+		return result;
+	}
+
+	@Override
+	public int hashCode() {
+		return mHashCode;
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		final CacheKey another = (CacheKey) o;
+		return mHashCode == another.mHashCode && width == another.width
+				&& height == another.height && source.equals(another.source)
+				&& (transformationKey == null ? another.transformationKey == null
+						: transformationKey.equals(another.transformationKey))
+				&& (optionsKey == null ? another.optionsKey == null : optionsKey
+						.equals(another.optionsKey));
+	}
+
+	@Override
+	public String toString() {
+		String key = source + "#" + width + "x" + height;
+		if (transformationKey != null) {
+			key += "#" + transformationKey;
+		}
+		if (optionsKey != null) {
+			key += "#" + optionsKey;
+		}
+		return key;
+	}
+}
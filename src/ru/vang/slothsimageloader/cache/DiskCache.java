@@ -1,49 +1,137 @@
 package ru.vang.slothsimageloader.cache;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ru.vang.slothsimageloader.utils.StorageUtils;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 
-import com.jakewharton.DiskLruCache;
-
 public class DiskCache {
-	private static final int APP_VERSION = 1;
-	private static final int DISK_CACHE_INDEX = 0;
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 1024 * 1024 * 2;
+	private static final String SEGMENT_STORE_DIR = "segments";
+	private static final int BUFFER_SIZE = 8192;
+	private static final int WRITE_LOCK_STRIPES = 16;
+	// Entries not yet in a full cache are written after this many lookups
+	private static final int ADMISSION_FREQUENCY = 2;
+	// Used to size frequency sketch by the number of entries
+	private static final int AVERAGE_ENTRY_SIZE = 1024 * 16;
 
 	private static final int MESSAGE_INDEX = 0;
 	private static final int MESSAGE_CLEAR = 0;
-	private static final int MESSAGE_INIT = 1;
-	private static final int MESSAGE_FLUSH = 2;
-	private static final int MESSAGE_CLOSE = 3;
+	private static final int MESSAGE_FLUSH = 1;
+	private static final int MESSAGE_CLOSE = 2;
+
+	/**
+	 * Storage backend. {@link #DISK_LRU} keeps a file per entry and replays a
+	 * journal on open, {@link #SEGMENTED} appends entries to a few segment
+	 * files indexed by a memory mapped hash table and opens in constant time.
+	 */
+	public enum StoreType {
+		DISK_LRU, SEGMENTED
+	}
 
-	private DiskLruCache mDiskCache;
-	private final Object mDiskCacheLock = new Object();
+	private DiskStore mStore;
+	// Read lock guards access to mStore, write lock is taken only to
+	// open, clear or close it. Stores themselves are thread safe.
+	private final ReadWriteLock mDiskCacheLock = new ReentrantReadWriteLock();
+	private final Object[] mWriteLocks = new Object[WRITE_LOCK_STRIPES];
+	private final Object mStartingLock = new Object();
+	private final AtomicLong mLockWaitNanos = new AtomicLong();
 	private boolean mDiskCacheStarting = true;
 	private final String mCacheDirPath;
 	private final int mDiskCacheSize;
+	private final StoreType mStoreType;
+	// Lookup frequency of keys, null if every entry is written
+	private final FrequencySketch mSketch;
+
+	private final Map<String, DiskEntry> mPendingWrites = new LinkedHashMap<String, DiskEntry>();
+	private int mPendingBytes;
+	private boolean mWriteScheduled;
+	private final int mWriteBufferSize;
+	private final ExecutorService mWriteExecutor = Executors.newSingleThreadExecutor();
+	private final Runnable mWritePendingTask = new Runnable() {
+
+		@Override
+		public void run() {
+			writePendingEntries();
+		}
+
+	};
+	private final Runnable mInitTask = new Runnable() {
 
-	private DiskCache(final String cacheDirPath, final int diskCacheSize) {
+		@Override
+		public void run() {
+			initDiskCache();
+		}
+
+	};
+
+	private DiskCache(final String cacheDirPath, final int diskCacheSize,
+			final int writeBufferSize, final StoreType storeType, final boolean admission) {
 		mCacheDirPath = cacheDirPath;
 		mDiskCacheSize = diskCacheSize;
+		mWriteBufferSize = writeBufferSize;
+		mStoreType = storeType;
+		mSketch = admission ? new FrequencySketch(diskCacheSize / AVERAGE_ENTRY_SIZE) : null;
+		for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+			mWriteLocks[i] = new Object();
+		}
 		initDiskCacheAsync();
 	}
 
 	public static DiskCache open(final String cacheDirPath, final int diskCacheSize) {
-		return new DiskCache(cacheDirPath, diskCacheSize);
+		return open(cacheDirPath, diskCacheSize, DEFAULT_WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param writeBufferSize
+	 *            max size in bytes of data waiting to be written to disk
+	 */
+	public static DiskCache open(final String cacheDirPath, final int diskCacheSize,
+			final int writeBufferSize) {
+		return open(cacheDirPath, diskCacheSize, writeBufferSize, StoreType.DISK_LRU);
 	}
 
+	/**
+	 * @param storeType
+	 *            backend which keeps entries on disk, both store the same
+	 *            data so they can be switched for comparison
+	 */
+	public static DiskCache open(final String cacheDirPath, final int diskCacheSize,
+			final int writeBufferSize, final StoreType storeType) {
+		return open(cacheDirPath, diskCacheSize, writeBufferSize, storeType, false);
+	}
+
+	/**
+	 * @param admission
+	 *            if true, a full cache takes a new entry only if its key was
+	 *            looked up at least twice recently, so images seen once do
+	 *            not evict ones which are reused
+	 */
+	public static DiskCache open(final String cacheDirPath, final int diskCacheSize,
+			final int writeBufferSize, final StoreType storeType, final boolean admission) {
+		return new DiskCache(cacheDirPath, diskCacheSize, writeBufferSize, storeType,
+				admission);
+	}
+
+	/**
+	 * Store is opened on the write thread, so writes queued during startup
+	 * are applied right after it and no other thread waits for it.
+	 */
 	private void initDiskCacheAsync() {
-		new DiskAsyncTask().execute(MESSAGE_INIT);
+		mWriteExecutor.execute(mInitTask);
 	}
 
 	/**
@@ -54,101 +142,230 @@ public class DiskCache {
 	 */
 	private void initDiskCache() {
 		// Set up disk cache
-		synchronized (mDiskCacheLock) {
-			if (mDiskCache == null || mDiskCache.isClosed()) {
+		mDiskCacheLock.writeLock().lock();
+		try {
+			if (mStore == null || mStore.isClosed()) {
 				final File diskCacheDir = new File(mCacheDirPath);
 				if (!diskCacheDir.exists()) {
 					diskCacheDir.mkdirs();
 				}
 				if (StorageUtils.getUsableSpace(diskCacheDir) > mDiskCacheSize) {
 					try {
-						mDiskCache = DiskLruCache.open(diskCacheDir, APP_VERSION, 1,
-								mDiskCacheSize);
+						mStore = openStore(diskCacheDir);
 					} catch (final IOException e) {
 						e.printStackTrace();
 					}
 				}
 
 			}
-			mDiskCacheStarting = false;
-			mDiskCacheLock.notifyAll();
+		} finally {
+			mDiskCacheLock.writeLock().unlock();
 		}
+		setDiskCacheStarting(false);
 	}
 
-	public void putBitmapInCache(final String url, final Bitmap bitmap) {
-		synchronized (mDiskCacheLock) {
-			if (mDiskCache != null) {
-				OutputStream os = null;
-				final String key = hashKeyForDisk(url);
-				try {
-					final DiskLruCache.Snapshot shapshot = mDiskCache.get(key);
-					if (shapshot == null) {
-						final DiskLruCache.Editor editor = mDiskCache.edit(key);
-						if (editor != null) {
-							os = editor.newOutputStream(DISK_CACHE_INDEX);
-							bitmap.compress(CompressFormat.PNG, 100, os);
-							editor.commit();
-						}
-					} else {
-						shapshot.getInputStream(DISK_CACHE_INDEX).close();
+	private DiskStore openStore(final File diskCacheDir) throws IOException {
+		switch (mStoreType) {
+			case SEGMENTED:
+				return SegmentStore.open(new File(diskCacheDir, SEGMENT_STORE_DIR),
+						mDiskCacheSize);
+			default:
+				return DiskLruStore.open(diskCacheDir, mDiskCacheSize);
+		}
+	}
+
+	/**
+	 * Bitmap is encoded in the calling thread and written to disk in
+	 * background, see {@link #putEntryInCache(CacheKey, DiskEntry)}.
+	 */
+	public void putBitmapInCache(final CacheKey cacheKey, final Bitmap bitmap) {
+		putBitmapInCache(cacheKey, bitmap, CompressFormat.PNG, 100, DiskEntry.NEVER_EXPIRES);
+	}
+
+	/**
+	 * @param quality
+	 *            value from 0 to 100, ignored by lossless formats
+	 * @param expires
+	 *            time in milliseconds after which the entry is not fresh, see
+	 *            {@link DiskEntry#expires}
+	 */
+	public void putBitmapInCache(final CacheKey cacheKey, final Bitmap bitmap,
+			final CompressFormat format, final int quality, final long expires) {
+		final ByteArrayOutputStream encoded = new ByteArrayOutputStream(BUFFER_SIZE);
+		bitmap.compress(format, quality, encoded);
+		putEntryInCache(cacheKey, new DiskEntry(encoded.toByteArray(), null, null, expires));
+	}
+
+	/**
+	 * Queues the entry to be written to disk in background. Pending writes of
+	 * the same key are merged and reads see pending data. When the queue
+	 * already holds more than write buffer size the entry is written in the
+	 * calling thread, or dropped if the store is still opening. Entries which
+	 * are not storable are skipped.
+	 */
+	public void putEntryInCache(final CacheKey cacheKey, final DiskEntry diskEntry) {
+		final String key = cacheKey.getDiskKey();
+		if (!diskEntry.storable || mWriteExecutor.isShutdown() || !isAdmitted(key, diskEntry)) {
+			return;
+		}
+		boolean writeNow = false;
+		synchronized (mPendingWrites) {
+			final DiskEntry previous = mPendingWrites.remove(key);
+			if (previous != null) {
+				mPendingBytes -= previous.data.length;
+			}
+			if (mPendingBytes + diskEntry.data.length > mWriteBufferSize) {
+				writeNow = true;
+			} else {
+				mPendingWrites.put(key, diskEntry);
+				mPendingBytes += diskEntry.data.length;
+				if (!mWriteScheduled) {
+					mWriteScheduled = true;
+					try {
+						mWriteExecutor.execute(mWritePendingTask);
+					} catch (RejectedExecutionException e) {
+						// Closed meanwhile, close() writes what is left
 					}
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} finally {
+				}
+			}
+		}
+
+		if (writeNow && !isDiskCacheStarting()) {
+			writeEntry(key, diskEntry);
+		}
+	}
+
+	/**
+	 * Writes of the same key are serialized, writes of different keys run
+	 * concurrently.
+	 */
+	private void writeEntry(final String key, final DiskEntry diskEntry) {
+		final long start = System.nanoTime();
+		synchronized (getWriteLock(key)) {
+			mLockWaitNanos.addAndGet(System.nanoTime() - start);
+			lockForRead();
+			try {
+				if (mStore != null) {
 					try {
-						if (os != null) {
-							os.close();
-						}
+						mStore.put(key, diskEntry);
 					} catch (IOException e) {
-						// TODO Auto-generated catch block
 						e.printStackTrace();
 					}
 				}
+			} finally {
+				mDiskCacheLock.readLock().unlock();
 			}
 		}
 	}
 
-	public Bitmap getBitmapFromDisk(final String url) {		
-		Bitmap bitmap = null;
-		synchronized (mDiskCacheLock) {
-			while (mDiskCacheStarting) {
-				try {
-					mDiskCacheLock.wait();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+	/**
+	 * Writes queued entries one by one, each entry stays visible to readers
+	 * until it is on disk. Journal is flushed once per drained batch.
+	 */
+	private void writePendingEntries() {
+		waitForDiskCache();
+		while (true) {
+			final String key;
+			final DiskEntry diskEntry;
+			synchronized (mPendingWrites) {
+				if (mPendingWrites.isEmpty()) {
+					mWriteScheduled = false;
+					break;
 				}
+				final Map.Entry<String, DiskEntry> entry = mPendingWrites.entrySet()
+						.iterator().next();
+				key = entry.getKey();
+				diskEntry = entry.getValue();
 			}
 
-			if (mDiskCache != null) {
-				BufferedInputStream bis = null;
-				try {
-					final String key = hashKeyForDisk(url);
-					final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
-					if (snapshot != null) {
-						final InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
-						bis = new BufferedInputStream(in, 8192);
-						if (in != null) {
-							bitmap = BitmapFactory.decodeStream(bis);
-						}
-					}
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} finally {
-					try {
-						if (bis != null) {
-							bis.close();
-						}
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+			writeEntry(key, diskEntry);
+			synchronized (mPendingWrites) {
+				if (mPendingWrites.get(key) == diskEntry) {
+					mPendingWrites.remove(key);
+					mPendingBytes -= diskEntry.data.length;
 				}
 			}
 		}
+		flush();
+	}
 
-		return bitmap;
+	/**
+	 * Entry is written if admission is disabled, the cache has room for it,
+	 * its key was looked up often enough or it replaces a stored entry.
+	 */
+	private boolean isAdmitted(final String key, final DiskEntry diskEntry) {
+		if (mSketch == null) {
+			return true;
+		}
+		synchronized (mSketch) {
+			if (mSketch.frequency(key.hashCode()) >= ADMISSION_FREQUENCY) {
+				return true;
+			}
+		}
+		if (isDiskCacheStarting()) {
+			return true;
+		}
+
+		lockForRead();
+		try {
+			return mStore == null || mStore.size() + diskEntry.data.length <= mDiskCacheSize
+					|| mStore.contains(key);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			mDiskCacheLock.readLock().unlock();
+		}
+
+		return true;
+	}
+
+	private void recordLookup(final String key) {
+		if (mSketch != null) {
+			synchronized (mSketch) {
+				mSketch.increment(key.hashCode());
+			}
+		}
+	}
+
+	private DiskEntry getPendingEntry(final String key) {
+		synchronized (mPendingWrites) {
+			return mPendingWrites.get(key);
+		}
+	}
+
+	private void clearPendingEntries() {
+		synchronized (mPendingWrites) {
+			mPendingWrites.clear();
+			mPendingBytes = 0;
+		}
+	}
+
+	/**
+	 * Returns encoded image as it was stored with its validators and
+	 * freshness. Reads run concurrently with each other and with writes.
+	 * While the store is opening only pending writes are visible, everything
+	 * else is reported as a miss instead of blocking the caller.
+	 */
+	public DiskEntry getEntryFromDisk(final CacheKey cacheKey) {
+		final String key = cacheKey.getDiskKey();
+		recordLookup(key);
+		final DiskEntry pending = getPendingEntry(key);
+		if (pending != null || isDiskCacheStarting()) {
+			return pending;
+		}
+
+		lockForRead();
+		try {
+			if (mStore != null) {
+				return mStore.get(key);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			mDiskCacheLock.readLock().unlock();
+		}
+
+		return null;
 	}
 
 	public void clearCacheAsync() {
@@ -156,17 +373,21 @@ public class DiskCache {
 	}
 
 	public void clearCache() {
-		synchronized (mDiskCacheLock) {
-			mDiskCacheStarting = true;
-			if (mDiskCache != null && !mDiskCache.isClosed()) {
+		clearPendingEntries();
+		setDiskCacheStarting(true);
+		mDiskCacheLock.writeLock().lock();
+		try {
+			if (mStore != null && !mStore.isClosed()) {
 				try {
-					mDiskCache.delete();
+					mStore.delete();
 				} catch (IOException e) {
 				}
-				mDiskCache = null;
-				initDiskCache();
+				mStore = null;
 			}
+		} finally {
+			mDiskCacheLock.writeLock().unlock();
 		}
+		initDiskCache();
 	}
 	
 	public void flushAsync() {
@@ -179,14 +400,17 @@ public class DiskCache {
 	 * thread.
 	 */
 	public void flush() {
-		synchronized (mDiskCacheLock) {
-			if (mDiskCache != null) {
+		lockForRead();
+		try {
+			if (mStore != null) {
 				try {
-					mDiskCache.flush();
+					mStore.flush();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
+		} finally {
+			mDiskCacheLock.readLock().unlock();
 		}
 	}
 	
@@ -197,48 +421,81 @@ public class DiskCache {
 	/**
 	 * Closes the disk cache associated with this ImageCache object. Note that
 	 * this includes disk access so this should not be executed on the main/UI
-	 * thread.
+	 * thread. Queued writes are flushed and the write thread exits, entries
+	 * put after that are dropped.
 	 */
 	public void close() {
-		synchronized (mDiskCacheLock) {
-			if (mDiskCache != null) {
+		mWriteExecutor.shutdown();
+		try {
+			mWriteExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writePendingEntries();
+		mDiskCacheLock.writeLock().lock();
+		try {
+			if (mStore != null) {
 				try {
-					if (!mDiskCache.isClosed()) {
-						mDiskCache.close();
-						mDiskCache = null;
+					if (!mStore.isClosed()) {
+						mStore.close();
+						mStore = null;
 					}
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
+		} finally {
+			mDiskCacheLock.writeLock().unlock();
 		}
 	}
 
-	private static String hashKeyForDisk(final String key) {
-		String cacheKey;
-		try {
-			final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-			mDigest.update(key.getBytes());
-			cacheKey = bytesToHexString(mDigest.digest());
-		} catch (NoSuchAlgorithmException e) {
-			cacheKey = String.valueOf(key.hashCode());
+	private void waitForDiskCache() {
+		synchronized (mStartingLock) {
+			while (mDiskCacheStarting) {
+				try {
+					mStartingLock.wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
 		}
-		return cacheKey;
 	}
 
-	private static String bytesToHexString(byte[] bytes) {
-		// http://stackoverflow.com/questions/332079
-		final StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < bytes.length; i++) {
-			String hex = Integer.toHexString(0xFF & bytes[i]);
-			if (hex.length() == 1) {
-				sb.append('0');
+	/**
+	 * @return true until the store is opened
+	 */
+	public boolean isDiskCacheStarting() {
+		synchronized (mStartingLock) {
+			return mDiskCacheStarting;
+		}
+	}
+
+	private void setDiskCacheStarting(final boolean starting) {
+		synchronized (mStartingLock) {
+			mDiskCacheStarting = starting;
+			if (!starting) {
+				mStartingLock.notifyAll();
 			}
-			sb.append(hex);
 		}
-		return sb.toString();
 	}
-	
+
+	private void lockForRead() {
+		final long start = System.nanoTime();
+		mDiskCacheLock.readLock().lock();
+		mLockWaitNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return total time threads spent waiting for disk cache locks
+	 */
+	public long getLockWaitNanos() {
+		return mLockWaitNanos.get();
+	}
+
+	private Object getWriteLock(final String key) {
+		return mWriteLocks[(key.hashCode() & 0x7fffffff) % WRITE_LOCK_STRIPES];
+	}
+
 	private class DiskAsyncTask extends AsyncTask<Integer, Void, Void> {
 
         @Override
@@ -247,9 +504,6 @@ public class DiskCache {
                 case MESSAGE_CLEAR:
                 	clearCache();
                     break;
-                case MESSAGE_INIT:
-                	initDiskCache();
-                    break;
                 case MESSAGE_FLUSH:
                 	flush();
                     break;
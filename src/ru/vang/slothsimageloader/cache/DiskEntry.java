@@ -0,0 +1,87 @@
+package ru.vang.slothsimageloader.cache;
+
+/**
+ * Encoded image with HTTP validators and freshness lifetime of the response
+ * it came from.
+ */
+public final class DiskEntry {
+	public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+	private static final char SEPARATOR = '\n';
+
+	public final byte[] data;
+	public final String etag;
+	public final String lastModified;
+	/**
+	 * Time in milliseconds after which the entry should be revalidated
+	 */
+	public final long expires;
+	/**
+	 * False if the response must not be written to disk
+	 */
+	public final boolean storable;
+
+	/**
+	 * Creates entry which never expires, e.g. for data which did not come
+	 * from HTTP.
+	 */
+	public DiskEntry(final byte[] data) {
+		this(data, null, null, NEVER_EXPIRES);
+	}
+
+	public DiskEntry(final byte[] data, final String etag, final String lastModified,
+			final long expires) {
+		this(data, etag, lastModified, expires, true);
+	}
+
+	public DiskEntry(final byte[] data, final String etag, final String lastModified,
+			final long expires, final boolean storable) {
+		this.data = data;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.expires = expires;
+		this.storable = storable;
+	}
+
+	public boolean isFresh(final long now) {
+		return now < expires;
+	}
+
+	String getMetadata() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append(expires).append(SEPARATOR);
+		if (etag != null) {
+			builder.append(etag);
+		}
+		builder.append(SEPARATOR);
+		if (lastModified != null) {
+			builder.append(lastModified);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Malformed metadata gives an entry which never expires, as all entries
+	 * did before metadata was stored.
+	 */
+	static DiskEntry fromMetadata(final byte[] data, final String metadata) {
+		if (metadata == null) {
+			return new DiskEntry(data);
+		}
+		final int first = metadata.indexOf(SEPARATOR);
+		final int second = first < 0 ? -1 : metadata.indexOf(SEPARATOR, first + 1);
+		if (second < 0) {
+			return new DiskEntry(data);
+		}
+
+		final long expires;
+		try {
+			expires = Long.parseLong(metadata.substring(0, first));
+		} catch (NumberFormatException e) {
+			return new DiskEntry(data);
+		}
+		final String etag = metadata.substring(first + 1, second);
+		final String lastModified = metadata.substring(second + 1);
+		return new DiskEntry(data, etag.length() == 0 ? null : etag,
+				lastModified.length() == 0 ? null : lastModified, expires);
+	}
+}
@@ -0,0 +1,121 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.jakewharton.DiskLruCache;
+
+/**
+ * Store which keeps one file per entry, see {@link DiskLruCache}. Metadata is
+ * kept as the second value of the entry.
+ */
+class DiskLruStore implements DiskStore {
+	private static final int APP_VERSION = 3;
+	private static final int VALUE_COUNT = 2;
+	private static final int DISK_CACHE_INDEX = 0;
+	private static final int METADATA_INDEX = 1;
+
+	private final DiskLruCache mDiskCache;
+
+	private DiskLruStore(final DiskLruCache diskCache) {
+		mDiskCache = diskCache;
+	}
+
+	static DiskLruStore open(final File directory, final long maxSize) throws IOException {
+		return new DiskLruStore(DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT,
+				maxSize));
+	}
+
+	@Override
+	public DiskEntry get(final String key) throws IOException {
+		final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+		if (snapshot == null) {
+			return null;
+		}
+
+		try {
+			final long length = snapshot.getLength(DISK_CACHE_INDEX);
+			final InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
+			if (in == null || length > Integer.MAX_VALUE) {
+				return null;
+			}
+			final byte[] data = new byte[(int) length];
+			int offset = 0;
+			int count;
+			while (offset < data.length
+					&& (count = in.read(data, offset, data.length - offset)) != -1) {
+				offset += count;
+			}
+
+			if (offset < data.length) {
+				return null;
+			}
+
+			return DiskEntry.fromMetadata(data, snapshot.getString(METADATA_INDEX));
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	@Override
+	public boolean contains(final String key) throws IOException {
+		final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+		if (snapshot == null) {
+			return false;
+		}
+		snapshot.close();
+
+		return true;
+	}
+
+	/**
+	 * Entry which is being written by another thread is skipped.
+	 */
+	@Override
+	public void put(final String key, final DiskEntry entry) throws IOException {
+		final DiskLruCache.Editor editor = mDiskCache.edit(key);
+		if (editor == null) {
+			return;
+		}
+
+		try {
+			final OutputStream os = editor.newOutputStream(DISK_CACHE_INDEX);
+			try {
+				os.write(entry.data);
+			} finally {
+				os.close();
+			}
+			editor.set(METADATA_INDEX, entry.getMetadata());
+			editor.commit();
+		} finally {
+			editor.abortUnlessCommitted();
+		}
+	}
+
+	@Override
+	public long size() {
+		return mDiskCache.size();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		mDiskCache.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mDiskCache.close();
+	}
+
+	@Override
+	public void delete() throws IOException {
+		mDiskCache.delete();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return mDiskCache.isClosed();
+	}
+}
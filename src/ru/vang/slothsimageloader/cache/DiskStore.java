@@ -0,0 +1,34 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.io.IOException;
+
+/**
+ * Storage backend of {@link DiskCache}. Keys are hex encoded MD5 hashes, data
+ * and metadata of an entry are written together. Implementations must be
+ * thread safe.
+ */
+interface DiskStore {
+
+	public DiskEntry get(String key) throws IOException;
+
+	public boolean contains(String key) throws IOException;
+
+	public void put(String key, DiskEntry entry) throws IOException;
+
+	/**
+	 * @return size in bytes of stored entries
+	 */
+	public long size();
+
+	public void flush() throws IOException;
+
+	public void close() throws IOException;
+
+	/**
+	 * Closes the store and deletes all its files.
+	 */
+	public void delete() throws IOException;
+
+	public boolean isClosed();
+
+}
@@ -0,0 +1,92 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps encoded images of recent disk hits and downloads in memory, so they
+ * can be decoded again without file access. Encoded images are many times
+ * smaller than decoded ones, so it holds many more images than
+ * {@link MemoryCache} of the same size.
+ * <p>
+ * In direct mode data is copied to direct buffers outside of the Java heap
+ * and copied back on every hit.
+ */
+public class EncodedMemoryCache {
+	public static final int DEFAULT_CACHE_SIZE = 1024 * 1024 * 4;
+
+	private final TinyLfuCache<CacheKey, Entry> mEntries;
+	private final boolean mDirect;
+
+	public EncodedMemoryCache(final int cacheSize, final boolean direct) {
+		this(cacheSize, direct, EvictionPolicy.TINY_LFU);
+	}
+
+	public EncodedMemoryCache(final int cacheSize, final boolean direct,
+			final EvictionPolicy policy) {
+		mDirect = direct;
+		mEntries = new TinyLfuCache<CacheKey, Entry>(cacheSize, policy) {
+
+			@Override
+			protected int sizeOf(final CacheKey key, final Entry value) {
+				return value.mLength;
+			}
+
+		};
+	}
+
+	public void put(final CacheKey key, final DiskEntry entry) {
+		if (entry.data.length > mEntries.maxSize()) {
+			return;
+		}
+		mEntries.put(key, new Entry(entry, mDirect));
+	}
+
+	public DiskEntry get(final CacheKey key) {
+		final Entry entry = mEntries.get(key);
+		return entry == null ? null : entry.toDiskEntry();
+	}
+
+	/**
+	 * @param fraction
+	 *            value from 0 to 1, 0 clears the cache
+	 */
+	public void trimToFraction(final float fraction) {
+		mEntries.trimToSize((int) (mEntries.maxSize() * fraction));
+	}
+
+	public void evictAll() {
+		mEntries.evictAll();
+	}
+
+	private static final class Entry {
+		private final DiskEntry mEntry;
+		private final ByteBuffer mBuffer;
+		private final int mLength;
+
+		public Entry(final DiskEntry entry, final boolean direct) {
+			mLength = entry.data.length;
+			if (direct) {
+				mBuffer = ByteBuffer.allocateDirect(mLength);
+				mBuffer.put(entry.data);
+				mEntry = new DiskEntry(null, entry.etag, entry.lastModified, entry.expires,
+						entry.storable);
+			} else {
+				mBuffer = null;
+				mEntry = entry;
+			}
+		}
+
+		public DiskEntry toDiskEntry() {
+			if (mBuffer == null) {
+				return mEntry;
+			}
+			final byte[] data = new byte[mLength];
+			// Duplicate keeps concurrent reads independent
+			final ByteBuffer buffer = mBuffer.duplicate();
+			buffer.rewind();
+			buffer.get(data);
+			return new DiskEntry(data, mEntry.etag, mEntry.lastModified, mEntry.expires,
+					mEntry.storable);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package ru.vang.slothsimageloader.cache;
+
+/**
+ * Policy which decides what is evicted from a full cache.
+ */
+public enum EvictionPolicy {
+	/**
+	 * Least recently used entry is evicted
+	 */
+	LRU,
+	/**
+	 * New entries go to a small LRU window. Entries leaving the window
+	 * displace entries of the main area only if they were requested more
+	 * often recently, so images seen once do not flush frequently reused
+	 * ones. See {@link TinyLfuCache}.
+	 */
+	TINY_LFU
+}
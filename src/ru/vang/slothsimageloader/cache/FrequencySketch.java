@@ -0,0 +1,97 @@
+package ru.vang.slothsimageloader.cache;
+
+/**
+ * Count-min sketch which estimates how often keys were seen recently. Every
+ * key has four 4-bit counters, the estimate is the smallest of them. After
+ * ten increments per counter slot all counters are halved, so old popularity
+ * fades out. Not thread safe.
+ */
+final class FrequencySketch {
+	static final int MAX_FREQUENCY = 15;
+	private static final int MIN_CAPACITY = 64;
+	private static final int DEPTH = 4;
+	private static final int SAMPLE_FACTOR = 10;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+			0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	// Every long holds 16 counters
+	private long[] mTable;
+	private int mTableMask;
+	private int mSampleSize;
+	private int mSize;
+
+	FrequencySketch(final int capacity) {
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Grows the sketch to estimate the given number of keys, existing
+	 * counts are dropped when the sketch grows.
+	 */
+	void ensureCapacity(final int capacity) {
+		int length = MIN_CAPACITY;
+		while (length < capacity && length < (1 << 30)) {
+			length <<= 1;
+		}
+		if (mTable != null && mTable.length >= length) {
+			return;
+		}
+		mTable = new long[length];
+		mTableMask = length - 1;
+		mSampleSize = SAMPLE_FACTOR * length;
+		mSize = 0;
+	}
+
+	int frequency(final int hashCode) {
+		final int hash = spread(hashCode);
+		int frequency = MAX_FREQUENCY;
+		for (int i = 0; i < DEPTH; i++) {
+			final int index = indexOf(hash, i);
+			final int shift = offsetOf(hash, i) << 2;
+			frequency = Math.min(frequency, (int) ((mTable[index] >>> shift) & 0xfL));
+		}
+		return frequency;
+	}
+
+	void increment(final int hashCode) {
+		final int hash = spread(hashCode);
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			final int index = indexOf(hash, i);
+			final int shift = offsetOf(hash, i) << 2;
+			final long mask = 0xfL << shift;
+			if ((mTable[index] & mask) != mask) {
+				mTable[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++mSize == mSampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < mTable.length; i++) {
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+		mSize /= 2;
+	}
+
+	private int indexOf(final int hash, final int row) {
+		long value = (hash + SEEDS[row]) * SEEDS[row];
+		value += value >>> 32;
+		return (int) value & mTableMask;
+	}
+
+	// Counter inside of the long, different for every row
+	private static int offsetOf(final int hash, final int row) {
+		return ((hash >>> (row << 3)) & 3) + (row << 2);
+	}
+
+	private static int spread(final int hashCode) {
+		int hash = hashCode * 0x9e3779b9;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -1,43 +1,213 @@
 package ru.vang.slothsimageloader.cache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.graphics.Bitmap;
-import android.support.v4.util.LruCache;
 
 public class MemoryCache {
 	public static final int DEFAULT_MEMORY_CACHE_SIZE = 1024 * 1024 * 5;
 	private static int cacheSize = DEFAULT_MEMORY_CACHE_SIZE;
-	private LruCache<String, Bitmap> mCachedBitmaps;
+	private volatile TinyLfuCache<CacheKey, Bitmap> mCachedBitmaps;
+	private final BitmapPool mBitmapPool = new BitmapPool(BitmapPool.DEFAULT_POOL_SIZE);
+	// Number of views bound to the key, such bitmaps are not moved to the pool
+	private final ConcurrentMap<CacheKey, AtomicInteger> mKeysInUse = new ConcurrentHashMap<CacheKey, AtomicInteger>();
+	// Keys of cached bitmaps by source, to find other sizes of the image
+	private final Map<String, List<CacheKey>> mKeysBySource = new HashMap<String, List<CacheKey>>();
+	// Size the cache is kept within under memory pressure
+	private volatile int mSizeLimit;
+	private boolean mTrimmed;
+	private int mPoolMaxSize;
 
 	public MemoryCache() {
-		initCache();
+		mSizeLimit = cacheSize;
+		initCache(EvictionPolicy.TINY_LFU);
+	}
+
+	/**
+	 * Replaces the cache with an empty one which evicts bitmaps according to
+	 * the policy, bitmaps of the current cache are moved to the pool.
+	 */
+	public synchronized void setEvictionPolicy(final EvictionPolicy policy) {
+		final TinyLfuCache<CacheKey, Bitmap> previous = mCachedBitmaps;
+		initCache(policy);
+		previous.evictAll();
 	}
 
-	public void putBitmapInCache(final String key, final Bitmap value) {
-		if (mCachedBitmaps.get(key) == null) {
+	public void putBitmapInCache(final CacheKey key, final Bitmap value) {
+		// Lookup preceding the put is already counted by the cache
+		if (!mCachedBitmaps.containsKey(key)) {
+			// Key is indexed before put so eviction always finds it
+			addSourceKey(key);
 			mCachedBitmaps.put(key, value);
+			final int sizeLimit = mSizeLimit;
+			if (sizeLimit < mCachedBitmaps.maxSize()) {
+				mCachedBitmaps.trimToSize(sizeLimit);
+			}
 		}
 	}
 
-	public Bitmap getBitmapFromCache(final String key) {
+	public Bitmap getBitmapFromCache(final CacheKey key) {
 		return mCachedBitmaps.get(key);
 	}
 
+	/**
+	 * @return key of the largest cached bitmap of the source with the same
+	 *         transformations, null if there is none
+	 */
+	public CacheKey getLargestKey(final String source, final String transformationKey) {
+		final List<CacheKey> keys;
+		synchronized (mKeysBySource) {
+			final List<CacheKey> sourceKeys = mKeysBySource.get(source);
+			if (sourceKeys == null) {
+				return null;
+			}
+			keys = new ArrayList<CacheKey>(sourceKeys);
+		}
+
+		CacheKey largestKey = null;
+		int largestSize = 0;
+		for (CacheKey key : keys) {
+			if (transformationKey == null ? key.transformationKey != null
+					: !transformationKey.equals(key.transformationKey)) {
+				continue;
+			}
+			final Bitmap bitmap = mCachedBitmaps.peek(key);
+			if (bitmap != null && bitmap.getWidth() * bitmap.getHeight() > largestSize) {
+				largestKey = key;
+				largestSize = bitmap.getWidth() * bitmap.getHeight();
+			}
+		}
+		return largestKey;
+	}
+
+	private void addSourceKey(final CacheKey key) {
+		synchronized (mKeysBySource) {
+			List<CacheKey> keys = mKeysBySource.get(key.source);
+			if (keys == null) {
+				keys = new ArrayList<CacheKey>(1);
+				mKeysBySource.put(key.source, keys);
+			}
+			if (!keys.contains(key)) {
+				keys.add(key);
+			}
+		}
+	}
+
+	private void removeSourceKey(final CacheKey key) {
+		synchronized (mKeysBySource) {
+			final List<CacheKey> keys = mKeysBySource.get(key.source);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					mKeysBySource.remove(key.source);
+				}
+			}
+		}
+	}
+
 	public void evictAll() {
 		mCachedBitmaps.evictAll();
 	}
 
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Trims the cache to the fraction of its max size and keeps it within
+	 * this size until {@link #restoreSize()}. Bitmap pool is emptied and
+	 * limited to the same fraction of its max size.
+	 * 
+	 * @param fraction
+	 *            value from 0 to 1, 0 clears the cache
+	 */
+	public synchronized void trimToFraction(final float fraction) {
+		if (!mTrimmed) {
+			mTrimmed = true;
+			mPoolMaxSize = mBitmapPool.maxSize();
+		}
+		mSizeLimit = (int) (mCachedBitmaps.maxSize() * fraction);
+		mCachedBitmaps.trimToSize(mSizeLimit);
+		mBitmapPool.evictAll();
+		mBitmapPool.setMaxSize((int) (mPoolMaxSize * fraction));
+	}
+
+	/**
+	 * Lets the cache and bitmap pool grow back to their max sizes.
+	 */
+	public synchronized void restoreSize() {
+		if (!mTrimmed) {
+			return;
+		}
+		mTrimmed = false;
+		mSizeLimit = mCachedBitmaps.maxSize();
+		mBitmapPool.setMaxSize(mPoolMaxSize);
+	}
+
+	/**
+	 * Marks the key as displayed by a view. Evicted bitmap is reused only
+	 * after all views are released.
+	 */
+	public void acquireKey(final CacheKey key) {
+		while (true) {
+			final AtomicInteger count = mKeysInUse.get(key);
+			if (count == null) {
+				if (mKeysInUse.putIfAbsent(key, new AtomicInteger(1)) == null) {
+					return;
+				}
+				continue;
+			}
+			// Zero count is being removed, a new one has to be put
+			final int value = count.get();
+			if (value > 0 && count.compareAndSet(value, value + 1)) {
+				return;
+			}
+			if (value <= 0) {
+				mKeysInUse.remove(key, count);
+			}
+		}
+	}
+
+	public void releaseKey(final CacheKey key) {
+		final AtomicInteger count = mKeysInUse.get(key);
+		if (count != null && count.decrementAndGet() <= 0) {
+			mKeysInUse.remove(key, count);
+		}
+	}
+
+	private boolean isKeyInUse(final CacheKey key) {
+		return mKeysInUse.containsKey(key);
+	}
+
 	public static void setCacheSize(final int cacheSize) {
 		MemoryCache.cacheSize = cacheSize;		
 	}
 
-	private void initCache() {
-		mCachedBitmaps = new LruCache<String, Bitmap>(cacheSize) {
+	private void initCache(final EvictionPolicy policy) {
+		mCachedBitmaps = new TinyLfuCache<CacheKey, Bitmap>(cacheSize, policy) {
 
 			@Override
-			public int sizeOf(final String key, final Bitmap value) {
+			public int sizeOf(final CacheKey key, final Bitmap value) {
 				return getBitmapByteCount(value);
 			}
 
+			@Override
+			protected void entryRemoved(final boolean evicted, final CacheKey key,
+					final Bitmap oldValue, final Bitmap newValue) {
+				if (newValue == null) {
+					removeSourceKey(key);
+					if (!isKeyInUse(key)) {
+						mBitmapPool.put(oldValue);
+					}
+				}
+			}
+
 		};
 	}
 
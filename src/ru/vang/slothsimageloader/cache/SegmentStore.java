@@ -0,0 +1,628 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ru.vang.slothsimageloader.utils.KeyUtils;
+
+/**
+ * Store which appends entries to a few large segment files and keeps their
+ * locations in a memory mapped hash table. Opening does not depend on the
+ * number of entries: the index is mapped as is and there is no journal to
+ * replay.
+ * <p>
+ * When the store grows over its max size the oldest segment is dropped.
+ * Entries of that segment which were read recently are copied to the current
+ * segment first, the rest is evicted together with overwritten data.
+ * <p>
+ * Index lookups are serialized, reading and appending data run outside of
+ * the lock through positional NIO calls. A record holds length of metadata,
+ * metadata in UTF-8 and the data.
+ */
+class SegmentStore implements DiskStore {
+	private static final String INDEX_FILE = "index";
+	private static final String INDEX_FILE_TMP = "index.tmp";
+	private static final String SEGMENT_FILE_PREFIX = "segment.";
+	private static final int SEGMENT_COUNT = 8;
+	private static final int MIN_SEGMENT_SIZE = 1024 * 64;
+	private static final int MIN_CAPACITY = 1024;
+	// Expected average entry size, used to size the index
+	private static final int AVERAGE_ENTRY_SIZE = 1024 * 16;
+
+	private static final int MAGIC = 0x534c5448;
+	private static final int VERSION = 2;
+	private static final String METADATA_CHARSET = "UTF-8";
+	private static final int METADATA_LENGTH_SIZE = 4;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_COUNT = 12;
+	private static final int HEADER_TOMBSTONES = 16;
+	private static final int HEADER_OLDEST_SEGMENT = 20;
+	private static final int HEADER_CURRENT_SEGMENT = 24;
+	private static final int HEADER_ACCESS_SEQUENCE = 28;
+
+	private static final int SLOT_SIZE = 40;
+	private static final int SLOT_HASH_HIGH = 0;
+	private static final int SLOT_HASH_LOW = 8;
+	private static final int SLOT_SEGMENT = 16;
+	private static final int SLOT_OFFSET = 20;
+	private static final int SLOT_LENGTH = 24;
+	private static final int SLOT_CHECKSUM = 28;
+	private static final int SLOT_LAST_ACCESS = 32;
+
+	private static final int SEGMENT_EMPTY = 0;
+	private static final int SEGMENT_REMOVED = -1;
+
+	private final File mDirectory;
+	private final long mMaxSize;
+	private final int mSegmentSize;
+	private final Map<Integer, FileChannel> mSegments = new HashMap<Integer, FileChannel>();
+
+	private RandomAccessFile mIndexFile;
+	private MappedByteBuffer mIndex;
+	private int mCapacity;
+	private int mCount;
+	private int mTombstones;
+	private int mOldestSegment;
+	private int mCurrentSegment;
+	private int mAccessSequence;
+	private long mWriteOffset;
+	private long mSize;
+	private boolean mClosed;
+
+	private SegmentStore(final File directory, final long maxSize) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		mSegmentSize = (int) Math.min(Integer.MAX_VALUE,
+				Math.max(MIN_SEGMENT_SIZE, maxSize / SEGMENT_COUNT));
+	}
+
+	static SegmentStore open(final File directory, final long maxSize) throws IOException {
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		final SegmentStore store = new SegmentStore(directory, maxSize);
+		if (!store.openExisting()) {
+			store.create();
+		}
+		return store;
+	}
+
+	@Override
+	public DiskEntry get(final String key) throws IOException {
+		final long hashHigh = getHashHigh(key);
+		final long hashLow = getHashLow(key);
+		final FileChannel channel;
+		final long offset;
+		final int length;
+		final int checksum;
+		synchronized (this) {
+			if (mClosed) {
+				return null;
+			}
+			final int slot = findSlot(hashHigh, hashLow);
+			if (slot < 0) {
+				return null;
+			}
+			final int position = getSlotPosition(slot);
+			channel = mSegments.get(mIndex.getInt(position + SLOT_SEGMENT));
+			if (channel == null) {
+				// Index is out of sync with segment files after a crash
+				mIndex.putInt(position + SLOT_SEGMENT, SEGMENT_REMOVED);
+				mCount--;
+				mTombstones++;
+				writeHeader();
+				return null;
+			}
+			offset = mIndex.getInt(position + SLOT_OFFSET) & 0xffffffffL;
+			length = mIndex.getInt(position + SLOT_LENGTH);
+			checksum = mIndex.getInt(position + SLOT_CHECKSUM);
+			mIndex.putInt(position + SLOT_LAST_ACCESS, ++mAccessSequence);
+			mIndex.putInt(HEADER_ACCESS_SEQUENCE, mAccessSequence);
+		}
+
+		final byte[] data = new byte[length];
+		try {
+			if (!readFully(channel, data, offset)) {
+				return null;
+			}
+		} catch (IOException e) {
+			// Segment was evicted while reading
+			return null;
+		}
+		if (getChecksum(data) != checksum) {
+			// Entry was not completely written before crash
+			remove(hashHigh, hashLow);
+			return null;
+		}
+
+		return decodeRecord(data);
+	}
+
+	@Override
+	public synchronized boolean contains(final String key) throws IOException {
+		return !mClosed && findSlot(getHashHigh(key), getHashLow(key)) >= 0;
+	}
+
+	/**
+	 * Entries bigger than a segment are not stored.
+	 */
+	@Override
+	public void put(final String key, final DiskEntry entry) throws IOException {
+		final byte[] data = encodeRecord(entry);
+		if (data.length > mSegmentSize) {
+			return;
+		}
+		final long hashHigh = getHashHigh(key);
+		final long hashLow = getHashLow(key);
+		final int checksum = getChecksum(data);
+
+		final int segment;
+		final long offset;
+		final FileChannel channel;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IOException("Store is closed");
+			}
+			if (mWriteOffset + data.length > mSegmentSize) {
+				startSegment();
+			}
+			segment = mCurrentSegment;
+			channel = mSegments.get(segment);
+			offset = mWriteOffset;
+			mWriteOffset += data.length;
+			mSize += data.length;
+		}
+
+		writeFully(channel, data, offset);
+
+		synchronized (this) {
+			if (mClosed || !mSegments.containsKey(segment)) {
+				return;
+			}
+			putSlot(hashHigh, hashLow, segment, offset, data.length, checksum);
+			trimToSize();
+		}
+	}
+
+	@Override
+	public synchronized long size() {
+		return mSize;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		mSegments.get(mCurrentSegment).force(false);
+		mIndex.force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		flush();
+		mClosed = true;
+		for (FileChannel channel : mSegments.values()) {
+			channel.close();
+		}
+		mSegments.clear();
+		mIndexFile.close();
+		mIndex = null;
+	}
+
+	@Override
+	public synchronized void delete() throws IOException {
+		close();
+		deleteFiles();
+		mDirectory.delete();
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * @return false if there is no valid index
+	 */
+	private boolean openExisting() throws IOException {
+		final File indexFile = new File(mDirectory, INDEX_FILE);
+		if (!indexFile.exists() || indexFile.length() < HEADER_SIZE) {
+			return false;
+		}
+
+		final RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		final MappedByteBuffer index = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, file.length());
+		final int capacity = index.getInt(HEADER_CAPACITY);
+		if (index.getInt(HEADER_MAGIC) != MAGIC || index.getInt(HEADER_VERSION) != VERSION
+				|| capacity <= 0 || Integer.bitCount(capacity) != 1
+				|| file.length() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+			file.close();
+			return false;
+		}
+
+		final int oldestSegment = index.getInt(HEADER_OLDEST_SEGMENT);
+		final int currentSegment = index.getInt(HEADER_CURRENT_SEGMENT);
+		if (oldestSegment <= 0 || currentSegment < oldestSegment) {
+			file.close();
+			return false;
+		}
+		long size = 0;
+		for (int segment = oldestSegment; segment <= currentSegment; segment++) {
+			final File segmentFile = getSegmentFile(segment);
+			if (!segmentFile.exists()) {
+				closeSegments();
+				file.close();
+				return false;
+			}
+			final FileChannel channel = new RandomAccessFile(segmentFile, "rw").getChannel();
+			mSegments.put(segment, channel);
+			size += channel.size();
+		}
+
+		mIndexFile = file;
+		mIndex = index;
+		mCapacity = capacity;
+		mCount = index.getInt(HEADER_COUNT);
+		mTombstones = index.getInt(HEADER_TOMBSTONES);
+		mOldestSegment = oldestSegment;
+		mCurrentSegment = currentSegment;
+		mAccessSequence = index.getInt(HEADER_ACCESS_SEQUENCE);
+		mWriteOffset = mSegments.get(currentSegment).size();
+		mSize = size;
+		return true;
+	}
+
+	private void create() throws IOException {
+		deleteFiles();
+		final long expectedCount = mMaxSize / AVERAGE_ENTRY_SIZE * 2;
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedCount && capacity < (1 << 24)) {
+			capacity <<= 1;
+		}
+
+		mIndexFile = createIndex(new File(mDirectory, INDEX_FILE), capacity);
+		mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				mIndexFile.length());
+		mCapacity = capacity;
+		mCount = 0;
+		mTombstones = 0;
+		mAccessSequence = 0;
+		mOldestSegment = 1;
+		mCurrentSegment = 1;
+		mSegments.put(mCurrentSegment,
+				new RandomAccessFile(getSegmentFile(mCurrentSegment), "rw").getChannel());
+		mWriteOffset = 0;
+		mSize = 0;
+		writeHeader();
+	}
+
+	private RandomAccessFile createIndex(final File indexFile, final int capacity)
+			throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		// New file is filled with zeros, so all slots are empty
+		file.setLength(0);
+		file.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+		return file;
+	}
+
+	private void writeHeader() {
+		mIndex.putInt(HEADER_MAGIC, MAGIC);
+		mIndex.putInt(HEADER_VERSION, VERSION);
+		mIndex.putInt(HEADER_CAPACITY, mCapacity);
+		mIndex.putInt(HEADER_COUNT, mCount);
+		mIndex.putInt(HEADER_TOMBSTONES, mTombstones);
+		mIndex.putInt(HEADER_OLDEST_SEGMENT, mOldestSegment);
+		mIndex.putInt(HEADER_CURRENT_SEGMENT, mCurrentSegment);
+		mIndex.putInt(HEADER_ACCESS_SEQUENCE, mAccessSequence);
+	}
+
+	private void startSegment() throws IOException {
+		mSegments.get(mCurrentSegment).force(false);
+		mCurrentSegment++;
+		mSegments.put(mCurrentSegment,
+				new RandomAccessFile(getSegmentFile(mCurrentSegment), "rw").getChannel());
+		mWriteOffset = 0;
+		writeHeader();
+	}
+
+	private void trimToSize() throws IOException {
+		while (mSize > mMaxSize && mOldestSegment < mCurrentSegment) {
+			evictOldestSegment();
+		}
+	}
+
+	/**
+	 * Entries read within the last mCount / 2 reads are copied forward if
+	 * they fit in the max size, others are removed.
+	 */
+	private void evictOldestSegment() throws IOException {
+		final int segment = mOldestSegment;
+		final FileChannel channel = mSegments.get(segment);
+		final long segmentSize = channel.size();
+		final int recentAccess = mAccessSequence - mCount / 2;
+		long budget = mMaxSize - (mSize - segmentSize);
+
+		for (int slot = 0; slot < mCapacity; slot++) {
+			final int position = getSlotPosition(slot);
+			if (mIndex.getInt(position + SLOT_SEGMENT) != segment) {
+				continue;
+			}
+
+			final int length = mIndex.getInt(position + SLOT_LENGTH);
+			final int lastAccess = mIndex.getInt(position + SLOT_LAST_ACCESS);
+			if (lastAccess - recentAccess > 0 && length <= budget) {
+				final byte[] data = new byte[length];
+				final long offset = mIndex.getInt(position + SLOT_OFFSET) & 0xffffffffL;
+				if (readFully(channel, data, offset)) {
+					if (mWriteOffset + length > mSegmentSize) {
+						startSegment();
+					}
+					writeFully(mSegments.get(mCurrentSegment), data, mWriteOffset);
+					mIndex.putInt(position + SLOT_SEGMENT, mCurrentSegment);
+					mIndex.putInt(position + SLOT_OFFSET, (int) mWriteOffset);
+					mWriteOffset += length;
+					mSize += length;
+					budget -= length;
+					continue;
+				}
+			}
+
+			mIndex.putInt(position + SLOT_SEGMENT, SEGMENT_REMOVED);
+			mCount--;
+			mTombstones++;
+		}
+
+		mSegments.remove(segment);
+		channel.close();
+		getSegmentFile(segment).delete();
+		mSize -= segmentSize;
+		mOldestSegment++;
+		writeHeader();
+	}
+
+	private int findSlot(final long hashHigh, final long hashLow) {
+		int slot = getStartSlot(hashLow);
+		for (int i = 0; i < mCapacity; i++) {
+			final int position = getSlotPosition(slot);
+			final int segment = mIndex.getInt(position + SLOT_SEGMENT);
+			if (segment == SEGMENT_EMPTY) {
+				return -1;
+			}
+			if (segment != SEGMENT_REMOVED && mIndex.getLong(position + SLOT_HASH_HIGH) == hashHigh
+					&& mIndex.getLong(position + SLOT_HASH_LOW) == hashLow) {
+				return slot;
+			}
+			slot = (slot + 1) & (mCapacity - 1);
+		}
+		return -1;
+	}
+
+	private void putSlot(final long hashHigh, final long hashLow, final int segment,
+			final long offset, final int length, final int checksum) throws IOException {
+		int slot = findSlot(hashHigh, hashLow);
+		if (slot < 0) {
+			if ((mCount + mTombstones + 1) * 4L > mCapacity * 3L) {
+				rehash();
+			}
+			slot = findFreeSlot(hashLow);
+			if (mIndex.getInt(getSlotPosition(slot) + SLOT_SEGMENT) == SEGMENT_REMOVED) {
+				mTombstones--;
+			}
+			mCount++;
+		}
+
+		writeSlot(mIndex, getSlotPosition(slot), hashHigh, hashLow, segment, offset, length,
+				checksum, ++mAccessSequence);
+		writeHeader();
+	}
+
+	private int findFreeSlot(final long hashLow) {
+		int slot = getStartSlot(hashLow);
+		while (mIndex.getInt(getSlotPosition(slot) + SLOT_SEGMENT) > 0) {
+			slot = (slot + 1) & (mCapacity - 1);
+		}
+		return slot;
+	}
+
+	private synchronized void remove(final long hashHigh, final long hashLow) {
+		if (mClosed) {
+			return;
+		}
+		final int slot = findSlot(hashHigh, hashLow);
+		if (slot >= 0) {
+			mIndex.putInt(getSlotPosition(slot) + SLOT_SEGMENT, SEGMENT_REMOVED);
+			mCount--;
+			mTombstones++;
+			writeHeader();
+		}
+	}
+
+	/**
+	 * Rebuilds the index without tombstones, growing it if it is more than
+	 * half full. New index replaces the old one atomically by rename.
+	 */
+	private void rehash() throws IOException {
+		int capacity = mCapacity;
+		if (mCount * 2L > mCapacity) {
+			capacity <<= 1;
+		}
+
+		final File tmpFile = new File(mDirectory, INDEX_FILE_TMP);
+		final RandomAccessFile file = createIndex(tmpFile, capacity);
+		final MappedByteBuffer index = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, file.length());
+		for (int slot = 0; slot < mCapacity; slot++) {
+			final int position = getSlotPosition(slot);
+			if (mIndex.getInt(position + SLOT_SEGMENT) <= 0) {
+				continue;
+			}
+			final long hashLow = mIndex.getLong(position + SLOT_HASH_LOW);
+			int newSlot = (int) (hashLow ^ (hashLow >>> 32)) & (capacity - 1);
+			while (index.getInt(HEADER_SIZE + newSlot * SLOT_SIZE + SLOT_SEGMENT) != SEGMENT_EMPTY) {
+				newSlot = (newSlot + 1) & (capacity - 1);
+			}
+			writeSlot(index, HEADER_SIZE + newSlot * SLOT_SIZE,
+					mIndex.getLong(position + SLOT_HASH_HIGH), hashLow,
+					mIndex.getInt(position + SLOT_SEGMENT),
+					mIndex.getInt(position + SLOT_OFFSET) & 0xffffffffL,
+					mIndex.getInt(position + SLOT_LENGTH),
+					mIndex.getInt(position + SLOT_CHECKSUM),
+					mIndex.getInt(position + SLOT_LAST_ACCESS));
+		}
+
+		mIndexFile.close();
+		mIndexFile = file;
+		mIndex = index;
+		mCapacity = capacity;
+		mTombstones = 0;
+		writeHeader();
+		mIndex.force();
+		if (!tmpFile.renameTo(new File(mDirectory, INDEX_FILE))) {
+			throw new IOException("Can not replace index");
+		}
+	}
+
+	private static void writeSlot(final MappedByteBuffer index, final int position,
+			final long hashHigh, final long hashLow, final int segment, final long offset,
+			final int length, final int checksum, final int lastAccess) {
+		index.putLong(position + SLOT_HASH_HIGH, hashHigh);
+		index.putLong(position + SLOT_HASH_LOW, hashLow);
+		index.putInt(position + SLOT_OFFSET, (int) offset);
+		index.putInt(position + SLOT_LENGTH, length);
+		index.putInt(position + SLOT_CHECKSUM, checksum);
+		index.putInt(position + SLOT_LAST_ACCESS, lastAccess);
+		// Segment is written last, it marks the slot as used
+		index.putInt(position + SLOT_SEGMENT, segment);
+	}
+
+	private int getStartSlot(final long hashLow) {
+		return (int) (hashLow ^ (hashLow >>> 32)) & (mCapacity - 1);
+	}
+
+	private static int getSlotPosition(final int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private File getSegmentFile(final int segment) {
+		return new File(mDirectory, SEGMENT_FILE_PREFIX + segment);
+	}
+
+	private void closeSegments() throws IOException {
+		for (FileChannel channel : mSegments.values()) {
+			channel.close();
+		}
+		mSegments.clear();
+	}
+
+	private void deleteFiles() {
+		final File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.equals(INDEX_FILE) || name.equals(INDEX_FILE_TMP)
+					|| name.startsWith(SEGMENT_FILE_PREFIX)) {
+				file.delete();
+			}
+		}
+	}
+
+	private static boolean readFully(final FileChannel channel, final byte[] data,
+			final long offset) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeFully(final FileChannel channel, final byte[] data,
+			final long offset) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+	}
+
+	private static byte[] encodeRecord(final DiskEntry entry) throws IOException {
+		final byte[] metadata = entry.getMetadata().getBytes(METADATA_CHARSET);
+		final byte[] record = new byte[METADATA_LENGTH_SIZE + metadata.length
+				+ entry.data.length];
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(metadata.length);
+		buffer.put(metadata);
+		buffer.put(entry.data);
+		return record;
+	}
+
+	private static DiskEntry decodeRecord(final byte[] record)
+			throws UnsupportedEncodingException {
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+		final int metadataLength = buffer.getInt();
+		if (metadataLength < 0 || metadataLength > record.length - METADATA_LENGTH_SIZE) {
+			return null;
+		}
+		final String metadata = new String(record, METADATA_LENGTH_SIZE, metadataLength,
+				METADATA_CHARSET);
+		final byte[] data = new byte[record.length - METADATA_LENGTH_SIZE - metadataLength];
+		System.arraycopy(record, METADATA_LENGTH_SIZE + metadataLength, data, 0, data.length);
+		return DiskEntry.fromMetadata(data, metadata);
+	}
+
+	private static int getChecksum(final byte[] data) {
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
+	}
+
+	private static long getHashHigh(final String key) {
+		return parseHex(getHexKey(key), 0);
+	}
+
+	private static long getHashLow(final String key) {
+		return parseHex(getHexKey(key), 16);
+	}
+
+	/**
+	 * Keys are expected to be MD5 hex strings already, other keys are hashed.
+	 */
+	private static String getHexKey(final String key) {
+		if (key.length() == 32) {
+			for (int i = 0; i < 32; i++) {
+				if (Character.digit(key.charAt(i), 16) < 0) {
+					return KeyUtils.hashKeyForDisk(key);
+				}
+			}
+			return key;
+		}
+		return KeyUtils.hashKeyForDisk(key);
+	}
+
+	private static long parseHex(final String hex, final int start) {
+		long value = 0;
+		for (int i = start; i < start + 16; i++) {
+			value = (value << 4) | Character.digit(hex.charAt(i), 16);
+		}
+		return value;
+	}
+}
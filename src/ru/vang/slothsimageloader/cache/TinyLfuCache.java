@@ -0,0 +1,337 @@
+package ru.vang.slothsimageloader.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache with the same contract as {@link android.support.v4.util.LruCache}
+ * and W-TinyLFU eviction. New entries go to an LRU window. Entry evicted
+ * from the window is admitted to the main area only if it was requested
+ * more often than the entry it would evict, according to
+ * {@link FrequencySketch}. Main area is a segmented LRU: entries hit in the
+ * probation segment move to the protected one.
+ * <p>
+ * Frequency is counted on lookups, including misses, so put should follow a
+ * lookup of the key. With {@link EvictionPolicy#LRU} the whole cache is the
+ * window and it behaves as LruCache.
+ */
+public class TinyLfuCache<K, V> {
+	// Images are large and often revisited soon after the first use, so the
+	// window is bigger than 1% used by general purpose caches
+	private static final int WINDOW_PERCENT = 10;
+	private static final int PROTECTED_PERCENT = 80;
+	private static final int SKETCH_CAPACITY = 256;
+
+	// Segments are kept in insertion order and entries are moved to the end
+	// explicitly, so peek does not change recency
+	private final LinkedHashMap<K, V> mWindow = new LinkedHashMap<K, V>();
+	private final LinkedHashMap<K, V> mProbation = new LinkedHashMap<K, V>();
+	private final LinkedHashMap<K, V> mProtected = new LinkedHashMap<K, V>();
+	// Null if admission is disabled
+	private final FrequencySketch mSketch;
+	private final int mMaxSize;
+	private final int mWindowMaxSize;
+	private final int mProtectedMaxSize;
+	private int mSize;
+	private int mWindowSize;
+	private int mProtectedSize;
+
+	public TinyLfuCache(final int maxSize, final EvictionPolicy policy) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		if (policy == EvictionPolicy.TINY_LFU) {
+			mWindowMaxSize = Math.max(1, (int) ((long) maxSize * WINDOW_PERCENT / 100));
+			mProtectedMaxSize = (int) ((long) (maxSize - mWindowMaxSize) * PROTECTED_PERCENT / 100);
+			mSketch = new FrequencySketch(SKETCH_CAPACITY);
+		} else {
+			mWindowMaxSize = maxSize;
+			mProtectedMaxSize = 0;
+			mSketch = null;
+		}
+	}
+
+	public final V get(final K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		synchronized (this) {
+			if (mSketch != null) {
+				mSketch.increment(key.hashCode());
+			}
+			V value = moveToEnd(mWindow, key);
+			if (value != null) {
+				return value;
+			}
+			value = moveToEnd(mProtected, key);
+			if (value != null) {
+				return value;
+			}
+			value = mProbation.remove(key);
+			if (value != null) {
+				protect(key, value);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Unlike {@link #get(Object)} does not count the lookup and does not
+	 * update recency, so the cache can be inspected without affecting
+	 * eviction.
+	 */
+	public synchronized final V peek(final K key) {
+		V value = mWindow.get(key);
+		if (value == null) {
+			value = mProtected.get(key);
+		}
+		if (value == null) {
+			value = mProbation.get(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Same as {@link #peek(Object)}.
+	 */
+	public synchronized final boolean containsKey(final K key) {
+		return mWindow.containsKey(key) || mProtected.containsKey(key)
+				|| mProbation.containsKey(key);
+	}
+
+	/**
+	 * @return the previous value of the key
+	 */
+	public final V put(final K key, final V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		final List<Removal<K, V>> removals = new ArrayList<Removal<K, V>>();
+		V previous;
+		synchronized (this) {
+			final int size = safeSizeOf(key, value);
+			if (mWindow.containsKey(key)) {
+				previous = mWindow.remove(key);
+				mWindow.put(key, value);
+				mWindowSize += size - safeSizeOf(key, previous);
+			} else if (mProtected.containsKey(key)) {
+				previous = mProtected.remove(key);
+				mProtected.put(key, value);
+				mProtectedSize += size - safeSizeOf(key, previous);
+			} else if (mProbation.containsKey(key)) {
+				previous = mProbation.remove(key);
+				mProbation.put(key, value);
+			} else {
+				previous = null;
+				mWindow.put(key, value);
+				mWindowSize += size;
+			}
+			mSize += previous == null ? size : size - safeSizeOf(key, previous);
+			if (mSketch != null) {
+				mSketch.ensureCapacity(mWindow.size() + mProbation.size() + mProtected.size());
+				evictFromWindow(removals);
+			}
+			trimToSize(mMaxSize, removals);
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, value);
+		}
+		notifyRemovals(removals);
+		return previous;
+	}
+
+	public final V remove(final K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		V previous;
+		synchronized (this) {
+			if ((previous = mWindow.remove(key)) != null) {
+				mWindowSize -= safeSizeOf(key, previous);
+			} else if ((previous = mProtected.remove(key)) != null) {
+				mProtectedSize -= safeSizeOf(key, previous);
+			} else {
+				previous = mProbation.remove(key);
+			}
+			if (previous != null) {
+				mSize -= safeSizeOf(key, previous);
+			}
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, null);
+		}
+		return previous;
+	}
+
+	/**
+	 * Evicts entries until the size is within the given one. Probation
+	 * entries go first, then window and protected ones.
+	 */
+	public void trimToSize(final int maxSize) {
+		final List<Removal<K, V>> removals = new ArrayList<Removal<K, V>>();
+		synchronized (this) {
+			trimToSize(maxSize, removals);
+		}
+		notifyRemovals(removals);
+	}
+
+	public final void evictAll() {
+		trimToSize(-1);
+	}
+
+	public synchronized final int size() {
+		return mSize;
+	}
+
+	public synchronized final int maxSize() {
+		return mMaxSize;
+	}
+
+	protected int sizeOf(final K key, final V value) {
+		return 1;
+	}
+
+	/**
+	 * Called outside of the cache lock for evicted, removed and replaced
+	 * entries, see {@link android.support.v4.util.LruCache}.
+	 */
+	protected void entryRemoved(final boolean evicted, final K key, final V oldValue,
+			final V newValue) {
+	}
+
+	// Must be called while holding the cache lock
+	private static <K, V> V moveToEnd(final LinkedHashMap<K, V> segment, final K key) {
+		final V value = segment.remove(key);
+		if (value != null) {
+			segment.put(key, value);
+		}
+		return value;
+	}
+
+	// Must be called while holding the cache lock
+	private void protect(final K key, final V value) {
+		mProtected.put(key, value);
+		mProtectedSize += safeSizeOf(key, value);
+		while (mProtectedSize > mProtectedMaxSize && !mProtected.isEmpty()) {
+			final Map.Entry<K, V> eldest = mProtected.entrySet().iterator().next();
+			if (eldest.getKey().equals(key)) {
+				break;
+			}
+			mProtected.remove(eldest.getKey());
+			mProtectedSize -= safeSizeOf(eldest.getKey(), eldest.getValue());
+			mProbation.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	// Must be called while holding the cache lock
+	private void evictFromWindow(final List<Removal<K, V>> removals) {
+		while (mWindowSize > mWindowMaxSize && mWindow.size() > 1) {
+			final Map.Entry<K, V> eldest = mWindow.entrySet().iterator().next();
+			final K key = eldest.getKey();
+			final V value = eldest.getValue();
+			final int size = safeSizeOf(key, value);
+			mWindow.remove(key);
+			mWindowSize -= size;
+			mSize -= size;
+			if (admit(key, size, removals)) {
+				mProbation.put(key, value);
+				mSize += size;
+			} else {
+				removals.add(new Removal<K, V>(key, value));
+			}
+		}
+	}
+
+	/**
+	 * Evicts main area entries which are used less often than the candidate
+	 * until it fits.
+	 *
+	 * @return false if the candidate is used less often than a victim
+	 */
+	private boolean admit(final K candidate, final int size, final List<Removal<K, V>> removals) {
+		final int mainMaxSize = mMaxSize - mWindowMaxSize;
+		if (size > mainMaxSize) {
+			return false;
+		}
+		final int frequency = mSketch.frequency(candidate.hashCode());
+		while (mSize - mWindowSize + size > mainMaxSize) {
+			final boolean probation = !mProbation.isEmpty();
+			final Map.Entry<K, V> victim = (probation ? mProbation : mProtected).entrySet()
+					.iterator().next();
+			if (frequency <= mSketch.frequency(victim.getKey().hashCode())) {
+				return false;
+			}
+			final int victimSize = safeSizeOf(victim.getKey(), victim.getValue());
+			removals.add(new Removal<K, V>(victim.getKey(), victim.getValue()));
+			if (probation) {
+				mProbation.remove(victim.getKey());
+			} else {
+				mProtected.remove(victim.getKey());
+				mProtectedSize -= victimSize;
+			}
+			mSize -= victimSize;
+		}
+		return true;
+	}
+
+	// Must be called while holding the cache lock
+	private void trimToSize(final int maxSize, final List<Removal<K, V>> removals) {
+		while (mSize > maxSize) {
+			final LinkedHashMap<K, V> segment;
+			if (!mProbation.isEmpty()) {
+				segment = mProbation;
+			} else if (!mWindow.isEmpty()) {
+				segment = mWindow;
+			} else if (!mProtected.isEmpty()) {
+				segment = mProtected;
+			} else {
+				break;
+			}
+
+			final Iterator<Map.Entry<K, V>> iterator = segment.entrySet().iterator();
+			final Map.Entry<K, V> eldest = iterator.next();
+			final int size = safeSizeOf(eldest.getKey(), eldest.getValue());
+			removals.add(new Removal<K, V>(eldest.getKey(), eldest.getValue()));
+			iterator.remove();
+			if (segment == mWindow) {
+				mWindowSize -= size;
+			} else if (segment == mProtected) {
+				mProtectedSize -= size;
+			}
+			mSize -= size;
+		}
+	}
+
+	private void notifyRemovals(final List<Removal<K, V>> removals) {
+		for (Removal<K, V> removal : removals) {
+			entryRemoved(true, removal.mKey, removal.mValue, null);
+		}
+	}
+
+	private int safeSizeOf(final K key, final V value) {
+		final int size = sizeOf(key, value);
+		if (size < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return size;
+	}
+
+	private static final class Removal<K, V> {
+		private final K mKey;
+		private final V mValue;
+
+		public Removal(final K key, final V value) {
+			mKey = key;
+			mValue = value;
+		}
+	}
+}
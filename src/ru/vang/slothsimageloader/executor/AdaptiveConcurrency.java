@@ -0,0 +1,76 @@
+package ru.vang.slothsimageloader.executor;
+
+/**
+ * Adjusts number of threads of an executor running network requests with
+ * additive increase and multiplicative decrease. The limit grows by about one
+ * per limit of successful requests while all threads are busy, shrinks when
+ * throughput of a request drops well below the best observed one, which
+ * means requests compete for bandwidth, and halves on network errors.
+ * Throughput is used instead of latency, so large images are not taken for
+ * congestion.
+ */
+public class AdaptiveConcurrency {
+	private static final double THROUGHPUT_TOLERANCE = 2.0;
+	private static final double THROUGHPUT_SMOOTHING = 0.3;
+	// Lets the best throughput go down after network conditions change
+	private static final double MAX_THROUGHPUT_DECAY = 0.98;
+	// Time of smaller responses is mostly round trip, so their throughput
+	// says nothing about bandwidth
+	private static final int MIN_SAMPLE_BYTES = 16 * 1024;
+	private static final double CONGESTION_DECREASE = 0.9;
+	private static final double ERROR_DECREASE = 0.5;
+
+	private final PriorityExecutor mExecutor;
+	private final int mMaxLimit;
+	private double mLimit;
+	// Bytes per nanosecond
+	private double mThroughput;
+	private double mMaxThroughput;
+
+	public AdaptiveConcurrency(final PriorityExecutor executor, final int maxLimit) {
+		mExecutor = executor;
+		mMaxLimit = maxLimit;
+		mLimit = Math.max(1, maxLimit / 2);
+		mExecutor.setThreadNumber((int) mLimit);
+	}
+
+	/**
+	 * @param nanos
+	 *            time of a completed request
+	 * @param bytes
+	 *            size of the response
+	 */
+	public synchronized void onSuccess(final long nanos, final long bytes) {
+		if (bytes >= MIN_SAMPLE_BYTES && nanos > 0) {
+			final double throughput = (double) bytes / nanos;
+			if (mMaxThroughput == 0) {
+				mThroughput = throughput;
+				mMaxThroughput = throughput;
+			} else {
+				mThroughput += THROUGHPUT_SMOOTHING * (throughput - mThroughput);
+				mMaxThroughput = Math.max(mMaxThroughput * MAX_THROUGHPUT_DECAY, throughput);
+			}
+		}
+
+		if (mThroughput * THROUGHPUT_TOLERANCE < mMaxThroughput) {
+			setLimit(mLimit * CONGESTION_DECREASE);
+		} else if (mExecutor.getActiveCount() >= (int) mLimit) {
+			setLimit(mLimit + 1 / mLimit);
+		}
+	}
+
+	/**
+	 * Called when a request fails with a network error or times out.
+	 */
+	public synchronized void onFailure() {
+		setLimit(mLimit * ERROR_DECREASE);
+	}
+
+	private void setLimit(final double limit) {
+		final int previous = (int) mLimit;
+		mLimit = Math.max(1, Math.min(mMaxLimit, limit));
+		if ((int) mLimit != previous) {
+			mExecutor.setThreadNumber((int) mLimit);
+		}
+	}
+}
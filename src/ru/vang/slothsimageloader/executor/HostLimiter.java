@@ -0,0 +1,118 @@
+package ru.vang.slothsimageloader.executor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Limits number of tasks running concurrently for one host, so a slow host
+ * can not take every thread of an executor. Tasks over the limit are parked
+ * without holding a thread and handed back in priority order when a running
+ * task of the same host finishes. The slot of the finished task is passed to
+ * the returned task, which must either acquire it or give it up with
+ * {@link #remove(String, PrioritizedTask)}, so parked tasks are not left
+ * without a wake-up.
+ */
+public class HostLimiter {
+	private final int mMaxPerHost;
+	private final Map<String, Integer> mRunning = new HashMap<String, Integer>();
+	private final Map<String, PriorityQueue<PrioritizedTask>> mParked = new HashMap<String, PriorityQueue<PrioritizedTask>>();
+	// Woken tasks which hold the slot of a finished task
+	private final Set<PrioritizedTask> mGranted = new HashSet<PrioritizedTask>();
+
+	public HostLimiter(final int maxPerHost) {
+		mMaxPerHost = maxPerHost;
+	}
+
+	/**
+	 * @return true if the task can run now, otherwise it is parked and
+	 *         returned by {@link #release(String)} later
+	 */
+	public synchronized boolean acquire(final String host, final PrioritizedTask task) {
+		if (mGranted.remove(task)) {
+			return true;
+		}
+		final Integer running = mRunning.get(host);
+		final int count = running == null ? 0 : running;
+		if (count >= mMaxPerHost) {
+			PriorityQueue<PrioritizedTask> parked = mParked.get(host);
+			if (parked == null) {
+				parked = new PriorityQueue<PrioritizedTask>();
+				mParked.put(host, parked);
+			}
+			parked.add(task);
+			return false;
+		}
+		mRunning.put(host, count + 1);
+		return true;
+	}
+
+	/**
+	 * @return parked task of the host which should be executed again, null if
+	 *         there is none
+	 */
+	public synchronized PrioritizedTask release(final String host) {
+		final PriorityQueue<PrioritizedTask> parked = mParked.get(host);
+		if (parked != null) {
+			final PrioritizedTask task = parked.poll();
+			if (parked.isEmpty()) {
+				mParked.remove(host);
+			}
+			mGranted.add(task);
+			return task;
+		}
+
+		final Integer running = mRunning.get(host);
+		if (running == null || running <= 1) {
+			mRunning.remove(host);
+		} else {
+			mRunning.put(host, running - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes cancelled or finished task which did not acquire the host. If
+	 * the task was woken, its slot goes to the next parked task.
+	 * 
+	 * @return parked task which should be executed again, null if there is
+	 *         none
+	 */
+	public synchronized PrioritizedTask remove(final String host, final PrioritizedTask task) {
+		if (mGranted.remove(task)) {
+			return release(host);
+		}
+		final PriorityQueue<PrioritizedTask> parked = mParked.get(host);
+		if (parked != null && parked.remove(task) && parked.isEmpty()) {
+			mParked.remove(host);
+		}
+		return null;
+	}
+
+	/**
+	 * Moves parked task to the head of the parked tasks with the given
+	 * priority.
+	 * 
+	 * @return false if the task is not parked
+	 */
+	public synchronized boolean reschedule(final String host, final PrioritizedTask task,
+			final int priority) {
+		final PriorityQueue<PrioritizedTask> parked = mParked.get(host);
+		if (parked == null || !parked.remove(task)) {
+			return false;
+		}
+		task.setPriority(priority);
+		parked.add(task);
+		return true;
+	}
+
+	public synchronized int getParkedCount() {
+		int count = 0;
+		for (PriorityQueue<PrioritizedTask> parked : mParked.values()) {
+			count += parked.size();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,46 @@
+package ru.vang.slothsimageloader.executor;
+
+/**
+ * Task which is run by {@link PriorityExecutor}. Tasks with higher priority
+ * run first, tasks with the same priority run in LIFO order so the most
+ * recently requested images are loaded first.
+ */
+public abstract class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+
+	private volatile int mPriority;
+	private volatile long mSequence;
+
+	public PrioritizedTask(final int priority) {
+		mPriority = priority;
+	}
+
+	public int getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * Must not be called while the task is queued, use
+	 * {@link PriorityExecutor#reschedule(PrioritizedTask, int)} instead.
+	 */
+	void setPriority(final int priority) {
+		mPriority = priority;
+	}
+
+	void setSequence(final long sequence) {
+		mSequence = sequence;
+	}
+
+	@Override
+	public int compareTo(final PrioritizedTask another) {
+		if (mPriority != another.mPriority) {
+			return mPriority > another.mPriority ? -1 : 1;
+		}
+		if (mSequence != another.mSequence) {
+			return mSequence > another.mSequence ? -1 : 1;
+		}
+		return 0;
+	}
+}
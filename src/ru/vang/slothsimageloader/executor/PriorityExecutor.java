@@ -0,0 +1,100 @@
+package ru.vang.slothsimageloader.executor;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size thread pool which runs {@link PrioritizedTask}s by priority and
+ * can be paused, e.g. during fling. Tasks must be passed to
+ * {@link #execute(Runnable)}, submit() wraps them and breaks the ordering.
+ * Tasks executed after shutdown are discarded, so running tasks can move to
+ * the next stage while the executor is being shut down.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+	private final AtomicLong mSequence = new AtomicLong();
+	private final ReentrantLock mPauseLock = new ReentrantLock();
+	private final Condition mUnpaused = mPauseLock.newCondition();
+	private boolean mPaused;
+
+	public PriorityExecutor(final int threadNumber) {
+		super(threadNumber, threadNumber, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new DiscardPolicy());
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		if (!(command instanceof PrioritizedTask)) {
+			throw new IllegalArgumentException("Only PrioritizedTask can be executed");
+		}
+		((PrioritizedTask) command).setSequence(mSequence.incrementAndGet());
+		super.execute(command);
+	}
+
+	/**
+	 * Moves queued task to the head of the tasks with the given priority.
+	 * Task which is not queued, e.g. running or waiting for another task,
+	 * keeps the priority for its next execution.
+	 * 
+	 * @return false if the task is not in the queue
+	 */
+	public boolean reschedule(final PrioritizedTask task, final int priority) {
+		final boolean queued = remove(task);
+		task.setPriority(priority);
+		// Task could be queued by another thread before its priority changed
+		if (queued || remove(task)) {
+			execute(task);
+		}
+		return queued;
+	}
+
+	/**
+	 * Threads above the new number finish when they become idle.
+	 */
+	public void setThreadNumber(final int threadNumber) {
+		if (threadNumber > getMaximumPoolSize()) {
+			setMaximumPoolSize(threadNumber);
+			setCorePoolSize(threadNumber);
+		} else {
+			setCorePoolSize(threadNumber);
+			setMaximumPoolSize(threadNumber);
+		}
+	}
+
+	public void pause() {
+		mPauseLock.lock();
+		try {
+			mPaused = true;
+		} finally {
+			mPauseLock.unlock();
+		}
+	}
+
+	public void resume() {
+		mPauseLock.lock();
+		try {
+			mPaused = false;
+			mUnpaused.signalAll();
+		} finally {
+			mPauseLock.unlock();
+		}
+	}
+
+	@Override
+	protected void beforeExecute(final Thread thread, final Runnable runnable) {
+		super.beforeExecute(thread, runnable);
+		mPauseLock.lock();
+		try {
+			while (mPaused) {
+				mUnpaused.await();
+			}
+		} catch (InterruptedException e) {
+			thread.interrupt();
+		} finally {
+			mPauseLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Opens "asset:///path" sources. Assets must be stored uncompressed in the
+ * package, which is the default for image formats.
+ */
+public class AssetFetcher implements LocalFetcher {
+	public static final String SCHEME = "asset";
+	private static final String PREFIX = SCHEME + ":///";
+
+	private final AssetManager mAssetManager;
+
+	public AssetFetcher(final Context context) {
+		mAssetManager = context.getAssets();
+	}
+
+	@Override
+	public AssetFileDescriptor open(final String source) throws IOException {
+		final String path = source.startsWith(PREFIX) ? source.substring(PREFIX.length())
+				: source.substring(SCHEME.length() + 1);
+		return mAssetManager.openFd(path);
+	}
+}
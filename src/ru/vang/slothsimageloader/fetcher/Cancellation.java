@@ -0,0 +1,45 @@
+package ru.vang.slothsimageloader.fetcher;
+
+/**
+ * Lets a fetch be aborted from another thread, e.g. by closing its
+ * connection.
+ */
+public final class Cancellation {
+	private boolean mCancelled;
+	private Runnable mOnCancel;
+
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public void cancel() {
+		final Runnable onCancel;
+		synchronized (this) {
+			if (mCancelled) {
+				return;
+			}
+			mCancelled = true;
+			onCancel = mOnCancel;
+			mOnCancel = null;
+		}
+		if (onCancel != null) {
+			onCancel.run();
+		}
+	}
+
+	/**
+	 * Action is run once when the fetch is cancelled, or right away if it is
+	 * already cancelled. Pass null to remove it.
+	 */
+	public void setOnCancelListener(final Runnable onCancel) {
+		synchronized (this) {
+			if (!mCancelled) {
+				mOnCancel = onCancel;
+				return;
+			}
+		}
+		if (onCancel != null) {
+			onCancel.run();
+		}
+	}
+}
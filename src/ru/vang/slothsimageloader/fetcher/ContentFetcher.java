@@ -0,0 +1,32 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+/**
+ * Opens "content://" sources, e.g. from MediaStore.
+ */
+public class ContentFetcher implements LocalFetcher {
+	public static final String SCHEME = ContentResolver.SCHEME_CONTENT;
+
+	private final ContentResolver mContentResolver;
+
+	public ContentFetcher(final Context context) {
+		mContentResolver = context.getContentResolver();
+	}
+
+	@Override
+	public AssetFileDescriptor open(final String source) throws IOException {
+		final AssetFileDescriptor fd = mContentResolver.openAssetFileDescriptor(
+				Uri.parse(source), "r");
+		if (fd == null) {
+			throw new FileNotFoundException(source);
+		}
+		return fd;
+	}
+}
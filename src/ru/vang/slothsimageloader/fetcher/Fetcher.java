@@ -0,0 +1,12 @@
+package ru.vang.slothsimageloader.fetcher;
+
+/**
+ * Provides images of one URI scheme, see
+ * {@link ru.vang.slothsimageloader.CacheParams.Builder#setFetcher(String, Fetcher)}.
+ * Implement {@link NetworkFetcher} for sources which should be stored in disk
+ * cache and {@link LocalFetcher} for sources which can be decoded in place.
+ * Implementations must be thread safe.
+ */
+public interface Fetcher {
+
+}
@@ -0,0 +1,24 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Opens "file:///path" sources and absolute paths.
+ */
+public class FileFetcher implements LocalFetcher {
+	public static final String SCHEME = "file";
+	private static final String PREFIX = SCHEME + "://";
+
+	@Override
+	public AssetFileDescriptor open(final String source) throws IOException {
+		final String path = source.startsWith(PREFIX) ? source.substring(PREFIX.length())
+				: source;
+		final ParcelFileDescriptor fd = ParcelFileDescriptor.open(new File(path),
+				ParcelFileDescriptor.MODE_READ_ONLY);
+		return new AssetFileDescriptor(fd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+	}
+}
@@ -0,0 +1,149 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import ru.vang.slothsimageloader.cache.DiskEntry;
+import ru.vang.slothsimageloader.utils.FlushedInputStream;
+import ru.vang.slothsimageloader.utils.HttpCacheUtils;
+import android.os.Build;
+
+/**
+ * Fetches images with {@link HttpURLConnection}. Connections are not
+ * disconnected and response bodies are read to the end, so the platform
+ * keeps sockets alive and reuses them for the next requests to the same host.
+ * Connections are closed only when a fetch is cancelled or fails.
+ */
+public class HttpFetcher implements NetworkFetcher {
+	public static final String SCHEME_HTTP = "http";
+	public static final String SCHEME_HTTPS = "https";
+	private static final int BUFFER_SIZE = 8192;
+	// Bigger error bodies are not worth reading to keep the connection
+	private static final int MAX_DRAIN_SIZE = 1024 * 64;
+
+	private final int mConnectionTimeout;
+	private final int mReadTimeout;
+
+	public HttpFetcher(final int connectionTimeout, final int readTimeout) {
+		mConnectionTimeout = connectionTimeout;
+		mReadTimeout = readTimeout;
+	}
+
+	@Override
+	public DiskEntry fetch(final String source, final DiskEntry staleEntry,
+			final Cancellation cancellation) throws IOException {
+		disableConnectionReuseIfNecessary();
+		final HttpURLConnection connection = (HttpURLConnection) new URL(source)
+				.openConnection();
+		boolean reusable = false;
+		try {
+			connection.setConnectTimeout(mConnectionTimeout);
+			connection.setReadTimeout(mReadTimeout);
+			if (staleEntry != null) {
+				HttpCacheUtils.addConditionalHeaders(connection, staleEntry);
+			}
+			cancellation.setOnCancelListener(new Runnable() {
+
+				@Override
+				public void run() {
+					connection.disconnect();
+				}
+
+			});
+			if (cancellation.isCancelled()) {
+				return null;
+			}
+
+			final int responseCode = connection.getResponseCode();
+			if (responseCode == HttpURLConnection.HTTP_OK) {
+				final InputStream in = connection.getInputStream();
+				try {
+					final BufferedInputStream bis = new BufferedInputStream(
+							new FlushedInputStream(in), BUFFER_SIZE);
+					final byte[] data = readResponse(bis, cancellation);
+					if (data == null) {
+						return null;
+					}
+					reusable = true;
+					return HttpCacheUtils.createEntry(connection, data,
+							System.currentTimeMillis());
+				} finally {
+					in.close();
+				}
+			}
+
+			reusable = drain(responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? connection
+					.getInputStream() : connection.getErrorStream());
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && staleEntry != null) {
+				return HttpCacheUtils.refreshEntry(connection, staleEntry,
+						System.currentTimeMillis());
+			}
+			return null;
+		} finally {
+			cancellation.setOnCancelListener(null);
+			if (!reusable) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Reads and closes body of the response which is not used.
+	 * 
+	 * @return true if the body is read to the end and the connection can be
+	 *         reused
+	 */
+	private static boolean drain(final InputStream in) {
+		if (in == null) {
+			return true;
+		}
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int total = 0;
+		int count;
+		try {
+			while ((count = in.read(buffer)) != -1) {
+				total += count;
+				if (total > MAX_DRAIN_SIZE) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return response body or null if the fetch is cancelled
+	 */
+	private static byte[] readResponse(final InputStream in, final Cancellation cancellation)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			if (cancellation.isCancelled()) {
+				return null;
+			}
+			out.write(buffer, 0, count);
+		}
+
+		return out.toByteArray();
+	}
+
+	public static void disableConnectionReuseIfNecessary() {
+		// HTTP connection reuse which was buggy pre-froyo
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.IOException;
+
+import android.content.res.AssetFileDescriptor;
+
+public interface LocalFetcher extends Fetcher {
+
+	/**
+	 * Opens the image for decoding, the caller closes the descriptor.
+	 */
+	public AssetFileDescriptor open(String source) throws IOException;
+
+}
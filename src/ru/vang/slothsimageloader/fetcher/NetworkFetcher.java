@@ -0,0 +1,20 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.IOException;
+
+import ru.vang.slothsimageloader.cache.DiskEntry;
+
+public interface NetworkFetcher extends Fetcher {
+
+	/**
+	 * @param staleEntry
+	 *            expired disk cache entry which should be revalidated, null if
+	 *            there is none
+	 * @return fetched entry, stale entry with updated freshness if it is not
+	 *         modified, or null if the image can not be fetched or the fetch
+	 *         is cancelled
+	 */
+	public DiskEntry fetch(String source, DiskEntry staleEntry, Cancellation cancellation)
+			throws IOException;
+
+}
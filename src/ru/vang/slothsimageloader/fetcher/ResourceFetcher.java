@@ -0,0 +1,65 @@
+package ru.vang.slothsimageloader.fetcher;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.net.Uri;
+
+/**
+ * Opens "android.resource://package/id" and
+ * "android.resource://package/type/name" sources of the application
+ * resources. Resources must be stored uncompressed in the package, which is
+ * the default for image formats.
+ */
+public class ResourceFetcher implements LocalFetcher {
+	public static final String SCHEME = ContentResolver.SCHEME_ANDROID_RESOURCE;
+
+	private final Resources mResources;
+	private final String mPackageName;
+
+	public ResourceFetcher(final Context context) {
+		mResources = context.getResources();
+		mPackageName = context.getPackageName();
+	}
+
+	@Override
+	public AssetFileDescriptor open(final String source) throws IOException {
+		final AssetFileDescriptor fd;
+		try {
+			fd = mResources.openRawResourceFd(getResourceId(source));
+		} catch (Resources.NotFoundException e) {
+			throw new FileNotFoundException(source);
+		}
+		if (fd == null) {
+			throw new FileNotFoundException(source);
+		}
+		return fd;
+	}
+
+	private int getResourceId(final String source) throws FileNotFoundException {
+		final Uri uri = Uri.parse(source);
+		final List<String> segments = uri.getPathSegments();
+		if (segments.size() == 1) {
+			try {
+				return Integer.parseInt(segments.get(0));
+			} catch (NumberFormatException e) {
+				throw new FileNotFoundException(source);
+			}
+		}
+		if (segments.size() == 2) {
+			final String packageName = uri.getAuthority() == null ? mPackageName : uri
+					.getAuthority();
+			final int id = mResources.getIdentifier(segments.get(1), segments.get(0),
+					packageName);
+			if (id != 0) {
+				return id;
+			}
+		}
+		throw new FileNotFoundException(source);
+	}
+}
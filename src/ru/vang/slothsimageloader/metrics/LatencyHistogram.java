@@ -0,0 +1,47 @@
+package ru.vang.slothsimageloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram with power of two buckets in microseconds. Bucket i
+ * holds values less than 2^i microseconds, the last one holds the rest.
+ */
+class LatencyHistogram {
+	static final int BUCKET_COUNT = 32;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotalNanos = new AtomicLong();
+
+	void record(final long nanos) {
+		final long micros = nanos / 1000;
+		final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+		mBuckets.incrementAndGet(bucket);
+		mCount.incrementAndGet();
+		mTotalNanos.addAndGet(nanos);
+	}
+
+	long getCount() {
+		return mCount.get();
+	}
+
+	long getTotalNanos() {
+		return mTotalNanos.get();
+	}
+
+	long[] copyBuckets() {
+		final long[] buckets = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = mBuckets.get(i);
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return upper bound of the bucket in microseconds
+	 */
+	static long getBucketLimitMicros(final int bucket) {
+		return 1L << bucket;
+	}
+}
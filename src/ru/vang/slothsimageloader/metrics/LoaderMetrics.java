@@ -0,0 +1,98 @@
+package ru.vang.slothsimageloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ru.vang.slothsimageloader.SlothsImageLoader.ImageSourceType;
+
+/**
+ * Counters and latency histograms of the loading pipeline. Recording does not
+ * allocate and does not take locks.
+ */
+public class LoaderMetrics {
+
+	/**
+	 * ENCODED_MEMORY_HITS are disk cache lookups served from encoded memory
+	 * cache, they are counted as DISK_HITS too.
+	 */
+	public enum Counter {
+		MEMORY_HITS, MEMORY_MISSES, DISK_HITS, DISK_MISSES, DOWNLOADS, DOWNLOAD_FAILURES,
+		BYTES_DOWNLOADED, DECODES, DECODE_FAILURES, REVALIDATIONS, NOT_MODIFIED,
+		ENCODED_MEMORY_HITS
+	}
+
+	/**
+	 * DISK_READ and DOWNLOAD are recorded for DISK and NETWORK source types,
+	 * DECODE and LOAD for the type the image was loaded from. LOAD is the time
+	 * from request to posting the image for display.
+	 */
+	public enum Timer {
+		DISK_READ, DOWNLOAD, DECODE, LOAD
+	}
+
+	private static final Counter[] COUNTERS = Counter.values();
+	private static final Timer[] TIMERS = Timer.values();
+	private static final ImageSourceType[] SOURCE_TYPES = ImageSourceType.values();
+
+	private final AtomicLongArray mCounters = new AtomicLongArray(COUNTERS.length);
+	private final LatencyHistogram[][] mHistograms = new LatencyHistogram[TIMERS.length][SOURCE_TYPES.length];
+	private volatile MetricsListener mListener;
+
+	public LoaderMetrics() {
+		for (int i = 0; i < TIMERS.length; i++) {
+			for (int j = 0; j < SOURCE_TYPES.length; j++) {
+				mHistograms[i][j] = new LatencyHistogram();
+			}
+		}
+	}
+
+	public void setListener(final MetricsListener listener) {
+		mListener = listener;
+	}
+
+	public void increment(final Counter counter) {
+		add(counter, 1);
+	}
+
+	public void add(final Counter counter, final long delta) {
+		mCounters.addAndGet(counter.ordinal(), delta);
+		final MetricsListener listener = mListener;
+		if (listener != null) {
+			listener.onCount(counter, delta);
+		}
+	}
+
+	public void recordTime(final Timer timer, final ImageSourceType sourceType,
+			final long nanos) {
+		mHistograms[timer.ordinal()][sourceType.ordinal()].record(nanos);
+		final MetricsListener listener = mListener;
+		if (listener != null) {
+			listener.onTime(timer, sourceType, nanos);
+		}
+	}
+
+	/**
+	 * Queue sizes and lock wait time are sampled by the caller at snapshot
+	 * time.
+	 */
+	public MetricsSnapshot snapshot(final int diskQueueSize, final int networkQueueSize,
+			final int decodeQueueSize, final long diskLockWaitNanos) {
+		final long[] counters = new long[COUNTERS.length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = mCounters.get(i);
+		}
+		final long[][][] buckets = new long[TIMERS.length][SOURCE_TYPES.length][];
+		final long[][] counts = new long[TIMERS.length][SOURCE_TYPES.length];
+		final long[][] totals = new long[TIMERS.length][SOURCE_TYPES.length];
+		for (int i = 0; i < TIMERS.length; i++) {
+			for (int j = 0; j < SOURCE_TYPES.length; j++) {
+				final LatencyHistogram histogram = mHistograms[i][j];
+				buckets[i][j] = histogram.copyBuckets();
+				counts[i][j] = histogram.getCount();
+				totals[i][j] = histogram.getTotalNanos();
+			}
+		}
+
+		return new MetricsSnapshot(counters, buckets, counts, totals, diskQueueSize,
+				networkQueueSize, decodeQueueSize, diskLockWaitNanos);
+	}
+}
@@ -0,0 +1,17 @@
+package ru.vang.slothsimageloader.metrics;
+
+import ru.vang.slothsimageloader.SlothsImageLoader.ImageSourceType;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics.Counter;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics.Timer;
+
+/**
+ * Receives every recorded value. Methods are called from loader threads and
+ * must return quickly.
+ */
+public interface MetricsListener {
+
+	public void onCount(Counter counter, long delta);
+
+	public void onTime(Timer timer, ImageSourceType sourceType, long nanos);
+
+}
@@ -0,0 +1,87 @@
+package ru.vang.slothsimageloader.metrics;
+
+import ru.vang.slothsimageloader.SlothsImageLoader.ImageSourceType;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics.Counter;
+import ru.vang.slothsimageloader.metrics.LoaderMetrics.Timer;
+
+/**
+ * Immutable copy of {@link LoaderMetrics}. Percentiles are approximated by
+ * the upper bound of power of two histogram buckets.
+ */
+public class MetricsSnapshot {
+	private final long[] mCounters;
+	private final long[][][] mBuckets;
+	private final long[][] mCounts;
+	private final long[][] mTotalNanos;
+
+	public final int diskQueueSize;
+	public final int networkQueueSize;
+	public final int decodeQueueSize;
+	public final long diskLockWaitNanos;
+
+	MetricsSnapshot(final long[] counters, final long[][][] buckets, final long[][] counts,
+			final long[][] totalNanos, final int diskQueueSize, final int networkQueueSize,
+			final int decodeQueueSize, final long diskLockWaitNanos) {
+		mCounters = counters;
+		mBuckets = buckets;
+		mCounts = counts;
+		mTotalNanos = totalNanos;
+		this.diskQueueSize = diskQueueSize;
+		this.networkQueueSize = networkQueueSize;
+		this.decodeQueueSize = decodeQueueSize;
+		this.diskLockWaitNanos = diskLockWaitNanos;
+	}
+
+	public long getCount(final Counter counter) {
+		return mCounters[counter.ordinal()];
+	}
+
+	public float getMemoryHitRatio() {
+		return getRatio(getCount(Counter.MEMORY_HITS), getCount(Counter.MEMORY_MISSES));
+	}
+
+	public float getDiskHitRatio() {
+		return getRatio(getCount(Counter.DISK_HITS), getCount(Counter.DISK_MISSES));
+	}
+
+	public long getTimeCount(final Timer timer, final ImageSourceType sourceType) {
+		return mCounts[timer.ordinal()][sourceType.ordinal()];
+	}
+
+	public long getMeanMicros(final Timer timer, final ImageSourceType sourceType) {
+		final long count = getTimeCount(timer, sourceType);
+		return count == 0 ? 0 : mTotalNanos[timer.ordinal()][sourceType.ordinal()] / count
+				/ 1000;
+	}
+
+	/**
+	 * @param percentile
+	 *            value from 0 to 100, e.g. 50 or 99
+	 */
+	public long getPercentileMicros(final Timer timer, final ImageSourceType sourceType,
+			final double percentile) {
+		final long[] buckets = mBuckets[timer.ordinal()][sourceType.ordinal()];
+		long total = 0;
+		for (long count : buckets) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		final long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return LatencyHistogram.getBucketLimitMicros(i);
+			}
+		}
+		return LatencyHistogram.getBucketLimitMicros(buckets.length - 1);
+	}
+
+	private static float getRatio(final long hits, final long misses) {
+		final long total = hits + misses;
+		return total == 0 ? 0 : (float) hits / total;
+	}
+}
@@ -0,0 +1,24 @@
+package ru.vang.slothsimageloader.transform;
+
+import android.graphics.Bitmap;
+
+/**
+ * Transforms decoded image before it is cached and displayed. Results are
+ * cached in memory and on disk under a key derived from the image source and
+ * keys of all transformations, so transformations must be deterministic.
+ */
+public interface Transformation {
+
+	/**
+	 * Returns identity of the transformation including its parameters, e.g.
+	 * "round-corners-8". It must stay the same between application launches.
+	 */
+	public String getKey();
+
+	/**
+	 * Returns transformed image. Source must not be recycled, if a new bitmap
+	 * is returned the source is reused for decoding other images.
+	 */
+	public Bitmap transform(final Bitmap source);
+
+}
@@ -0,0 +1,257 @@
+package ru.vang.slothsimageloader.utils;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import ru.vang.slothsimageloader.cache.BitmapPool;
+import android.annotation.TargetApi;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+public class BitmapUtils {
+	private static final int BUFFER_SIZE = 8192;
+	// Headers with large metadata, e.g. EXIF thumbnail, fit in it
+	private static final int PIPE_MARK_LIMIT = 1024 * 1024;
+
+	private BitmapUtils() {
+	};
+
+	/**
+	 * Decodes bitmap from byte array with the largest sample size which keeps
+	 * both dimensions equal or bigger than the requested ones. Zero width or
+	 * height means that dimension is not constrained. A bitmap from the pool
+	 * is reused if there is a suitable one.
+	 * 
+	 * @param config
+	 *            preferred config of the bitmap
+	 */
+	public static Bitmap decodeSampledBitmap(final byte[] data, final int reqWidth,
+			final int reqHeight, final BitmapPool bitmapPool, final Bitmap.Config config) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = config;
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+		options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+		options.inJustDecodeBounds = false;
+		addInBitmapOptions(options, bitmapPool);
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		} catch (IllegalArgumentException e) {
+			// Pooled bitmap does not fit
+			if (options.inBitmap == null) {
+				throw e;
+			}
+			options.inBitmap = null;
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		}
+	}
+
+	/**
+	 * Same as
+	 * {@link #decodeSampledBitmap(byte[], int, int, BitmapPool, Bitmap.Config)}
+	 * but reads the image from the descriptor, which can start at an offset
+	 * as for assets and resources. Regular file is read in place and rewound
+	 * by seeking to the start of the image. Pipe, e.g. from a content
+	 * provider, can not be seeked, so bytes of bounds pass are buffered up to
+	 * {@link #PIPE_MARK_LIMIT} and bitmaps from the pool are not reused,
+	 * because retrying the decode would need to read the start again.
+	 */
+	public static Bitmap decodeSampledBitmap(final AssetFileDescriptor fd, final int reqWidth,
+			final int reqHeight, final BitmapPool bitmapPool, final Bitmap.Config config)
+			throws IOException {
+		final InputStream stream;
+		final BitmapPool pool;
+		if (fd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH) {
+			stream = new MarkedInputStream(fd.createInputStream());
+			pool = null;
+		} else {
+			stream = new FileRegionInputStream(fd);
+			pool = bitmapPool;
+		}
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = config;
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(stream, null, options);
+		((RewindableInputStream) stream).rewind();
+
+		options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+		options.inJustDecodeBounds = false;
+		addInBitmapOptions(options, pool);
+		try {
+			return BitmapFactory.decodeStream(stream, null, options);
+		} catch (IllegalArgumentException e) {
+			// Pooled bitmap does not fit
+			if (options.inBitmap == null) {
+				throw e;
+			}
+			options.inBitmap = null;
+			((RewindableInputStream) stream).rewind();
+			return BitmapFactory.decodeStream(stream, null, options);
+		}
+	}
+
+	/**
+	 * Decoded bitmaps are made mutable so they can be reused later. Must be
+	 * called after bounds pass and sample size calculation.
+	 */
+	@TargetApi(11)
+	private static void addInBitmapOptions(final BitmapFactory.Options options,
+			final BitmapPool bitmapPool) {
+		if (!VersionUtils.hasHoneycomb()) {
+			return;
+		}
+		options.inMutable = true;
+		if (bitmapPool == null || options.outWidth <= 0 || options.outHeight <= 0) {
+			return;
+		}
+
+		final Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+				: Bitmap.Config.ARGB_8888;
+		if (VersionUtils.hasKitKat()) {
+			final int sampleSize = options.inSampleSize;
+			final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+			final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+			options.inBitmap = bitmapPool.get(width, height, config);
+		} else if (options.inSampleSize == 1) {
+			// Before KitKat only bitmaps of the same size can be reused
+			options.inBitmap = bitmapPool.get(options.outWidth, options.outHeight, config);
+		}
+	}
+
+	public static int getBytesPerPixel(final Bitmap.Config config) {
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		} else if (config == Bitmap.Config.ALPHA_8) {
+			return 1;
+		}
+		return 4;
+	}
+
+	public static int calculateInSampleSize(final BitmapFactory.Options options,
+			final int reqWidth, final int reqHeight) {
+		final int width = options.outWidth;
+		final int height = options.outHeight;
+		int inSampleSize = 1;
+		if (width <= 0 || height <= 0 || (reqWidth <= 0 && reqHeight <= 0)) {
+			return inSampleSize;
+		}
+
+		final int halfWidth = width / 2;
+		final int halfHeight = height / 2;
+		while ((reqWidth <= 0 || halfWidth / inSampleSize >= reqWidth)
+				&& (reqHeight <= 0 || halfHeight / inSampleSize >= reqHeight)) {
+			inSampleSize *= 2;
+		}
+
+		return inSampleSize;
+	}
+
+	private interface RewindableInputStream {
+
+		public void rewind() throws IOException;
+
+	}
+
+	/**
+	 * Reads the region of the descriptor without buffering, rewinding seeks
+	 * to the start of the region. The descriptor is closed by its owner.
+	 */
+	private static final class FileRegionInputStream extends FilterInputStream implements
+			RewindableInputStream {
+		private final FileChannel mChannel;
+		private final long mStart;
+		private final long mLength;
+		private long mRemaining;
+
+		public FileRegionInputStream(final AssetFileDescriptor fd) throws IOException {
+			super(new FileInputStream(fd.getFileDescriptor()));
+			mChannel = ((FileInputStream) in).getChannel();
+			mStart = fd.getStartOffset();
+			mLength = fd.getLength();
+			rewind();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mRemaining <= 0) {
+				return -1;
+			}
+			final int value = in.read();
+			if (value >= 0) {
+				mRemaining--;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			if (mRemaining <= 0) {
+				return -1;
+			}
+			final int read = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+			if (read > 0) {
+				mRemaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long count) throws IOException {
+			final long skipped = in.skip(Math.min(count, mRemaining));
+			mRemaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), mRemaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void rewind() throws IOException {
+			mChannel.position(mStart);
+			mRemaining = mLength;
+		}
+	}
+
+	/**
+	 * Keeps bytes read since the start up to {@link #PIPE_MARK_LIMIT}, so the
+	 * stream can be rewound after bounds pass. Decoder marks the stream with
+	 * a small read limit, which would discard the start, so its marks are
+	 * ignored and its resets go to the start as well. Once the limit is
+	 * passed the buffer does not grow anymore.
+	 */
+	private static final class MarkedInputStream extends BufferedInputStream implements
+			RewindableInputStream {
+
+		public MarkedInputStream(final InputStream in) {
+			super(in, BUFFER_SIZE);
+			super.mark(PIPE_MARK_LIMIT);
+		}
+
+		@Override
+		public void mark(final int readlimit) {
+		}
+
+		@Override
+		public void rewind() throws IOException {
+			reset();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package ru.vang.slothsimageloader.utils;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+public class DeviceUtils {
+	private DeviceUtils() {
+	};
+
+	public static boolean isLowMemory(final Context context) {
+		final ActivityManager activityManager = (ActivityManager) context
+				.getSystemService(Context.ACTIVITY_SERVICE);
+		final ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+		activityManager.getMemoryInfo(memoryInfo);
+
+		return memoryInfo.lowMemory;
+	}
+
+	/**
+	 * Before Jelly Bean mobile connection is considered metered. Connection is
+	 * also considered metered if its state can not be checked.
+	 */
+	@TargetApi(16)
+	public static boolean isActiveNetworkMetered(final Context context) {
+		final ConnectivityManager connectivityManager = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		try {
+			if (VersionUtils.hasJellyBean()) {
+				return connectivityManager.isActiveNetworkMetered();
+			}
+			final NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+			return networkInfo == null
+					|| networkInfo.getType() == ConnectivityManager.TYPE_MOBILE;
+		} catch (SecurityException e) {
+			// No ACCESS_NETWORK_STATE permission
+			return true;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package ru.vang.slothsimageloader.utils;
+
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+import ru.vang.slothsimageloader.cache.DiskEntry;
+
+public class HttpCacheUtils {
+	private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	private static final String DIRECTIVE_NO_CACHE = "no-cache";
+	private static final String DIRECTIVE_NO_STORE = "no-store";
+	private static final String DIRECTIVE_MAX_AGE = "max-age=";
+	// Heuristic freshness is a fraction of time since last modification
+	private static final int HEURISTIC_FRACTION = 10;
+	private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Adds validators of the stale entry to the request, must be called
+	 * before connecting.
+	 */
+	public static void addConditionalHeaders(final HttpURLConnection connection,
+			final DiskEntry staleEntry) {
+		if (staleEntry.etag != null) {
+			connection.setRequestProperty(HEADER_IF_NONE_MATCH, staleEntry.etag);
+		}
+		if (staleEntry.lastModified != null) {
+			connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, staleEntry.lastModified);
+		}
+	}
+
+	/**
+	 * @return entry with data and validators of 200 response
+	 */
+	public static DiskEntry createEntry(final HttpURLConnection connection, final byte[] data,
+			final long now) {
+		final String etag = connection.getHeaderField(HEADER_ETAG);
+		final String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+		return new DiskEntry(data, etag, lastModified,
+				getExpires(connection, etag != null || lastModified != null, now),
+				!isNoStore(connection));
+	}
+
+	/**
+	 * @return stale entry with validators and freshness of 304 response,
+	 *         validators missing in the response are kept
+	 */
+	public static DiskEntry refreshEntry(final HttpURLConnection connection,
+			final DiskEntry staleEntry, final long now) {
+		String etag = connection.getHeaderField(HEADER_ETAG);
+		if (etag == null) {
+			etag = staleEntry.etag;
+		}
+		String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+		if (lastModified == null) {
+			lastModified = staleEntry.lastModified;
+		}
+		return new DiskEntry(staleEntry.data, etag, lastModified,
+				getExpires(connection, true, now), !isNoStore(connection));
+	}
+
+	private static boolean isNoStore(final HttpURLConnection connection) {
+		final String cacheControl = connection.getHeaderField(HEADER_CACHE_CONTROL);
+		if (cacheControl == null) {
+			return false;
+		}
+		for (String directive : cacheControl.split(",")) {
+			if (directive.trim().toLowerCase(Locale.US).startsWith(DIRECTIVE_NO_STORE)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Freshness is taken from Cache-Control, Expires or Last-Modified headers
+	 * in this order. Responses without any of them which can not be
+	 * revalidated never expire, the others are revalidated on every disk hit.
+	 * no-cache entries are stored already expired, so they are revalidated
+	 * before use. no-store entries are not written to disk, see
+	 * {@link DiskEntry#storable}.
+	 */
+	private static long getExpires(final HttpURLConnection connection,
+			final boolean hasValidators, final long now) {
+		final String cacheControl = connection.getHeaderField(HEADER_CACHE_CONTROL);
+		if (cacheControl != null) {
+			final String[] directives = cacheControl.split(",");
+			long maxAge = -1;
+			for (String directive : directives) {
+				directive = directive.trim().toLowerCase(Locale.US);
+				if (directive.startsWith(DIRECTIVE_NO_CACHE)
+						|| directive.startsWith(DIRECTIVE_NO_STORE)) {
+					return now;
+				}
+				if (directive.startsWith(DIRECTIVE_MAX_AGE)) {
+					try {
+						maxAge = Long.parseLong(directive.substring(DIRECTIVE_MAX_AGE.length())
+								.trim());
+					} catch (NumberFormatException e) {
+						maxAge = 0;
+					}
+				}
+			}
+			if (maxAge >= 0) {
+				return now + maxAge * 1000;
+			}
+		}
+
+		final long date = connection.getDate() > 0 ? connection.getDate() : now;
+		final long expiration = connection.getExpiration();
+		if (expiration > 0) {
+			return now + Math.max(0, expiration - date);
+		}
+
+		final long lastModified = connection.getLastModified();
+		if (lastModified > 0 && lastModified < date) {
+			return now + Math.min((date - lastModified) / HEURISTIC_FRACTION,
+					MAX_HEURISTIC_FRESHNESS);
+		}
+
+		return hasValidators ? now : DiskEntry.NEVER_EXPIRES;
+	}
+}
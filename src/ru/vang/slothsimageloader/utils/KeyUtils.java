@@ -0,0 +1,117 @@
+package ru.vang.slothsimageloader.utils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cache key helpers. The class does not depend on Android so it can be
+ * measured by JVM benchmarks. Digest and buffers are reused per thread, so
+ * hashing allocates only the resulting string.
+ */
+public class KeyUtils {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final int DIGEST_LENGTH = 16;
+
+	private static final ThreadLocal<HashState> sHashState = new ThreadLocal<HashState>() {
+
+		@Override
+		protected HashState initialValue() {
+			return new HashState();
+		}
+
+	};
+
+	private KeyUtils() {
+	};
+
+	/**
+	 * Returns hex encoded MD5 of UTF-8 bytes of the key.
+	 */
+	public static String hashKeyForDisk(final String key) {
+		final HashState state = sHashState.get();
+		if (state.digest == null) {
+			return String.valueOf(key.hashCode());
+		}
+
+		final int length = encodeUtf8(key, state);
+		state.digest.update(state.input, 0, length);
+		try {
+			state.digest.digest(state.output, 0, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			state.digest.reset();
+			return String.valueOf(key.hashCode());
+		}
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			state.hex[i * 2] = HEX_DIGITS[(state.output[i] >> 4) & 0xF];
+			state.hex[i * 2 + 1] = HEX_DIGITS[state.output[i] & 0xF];
+		}
+		return new String(state.hex);
+	}
+
+	public static String bytesToHexString(final byte[] bytes) {
+		final char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Same as String.getBytes("UTF-8") but writes to the reusable buffer.
+	 * 
+	 * @return number of bytes written
+	 */
+	private static int encodeUtf8(final String key, final HashState state) {
+		final int charCount = key.length();
+		// Every char takes at most 3 bytes, surrogate pair takes 4
+		if (state.input.length < charCount * 3) {
+			state.input = new byte[charCount * 3];
+		}
+
+		final byte[] out = state.input;
+		int position = 0;
+		for (int i = 0; i < charCount; i++) {
+			final char c = key.charAt(i);
+			if (c < 0x80) {
+				out[position++] = (byte) c;
+			} else if (c < 0x800) {
+				out[position++] = (byte) (0xC0 | (c >> 6));
+				out[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < charCount
+					&& Character.isLowSurrogate(key.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, key.charAt(++i));
+				out[position++] = (byte) (0xF0 | (codePoint >> 18));
+				out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// Unpaired surrogate is replaced with '?' as String.getBytes does
+				out[position++] = '?';
+			} else {
+				out[position++] = (byte) (0xE0 | (c >> 12));
+				out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return position;
+	}
+
+	private static class HashState {
+		final MessageDigest digest;
+		byte[] input = new byte[256];
+		final byte[] output = new byte[DIGEST_LENGTH];
+		final char[] hex = new char[DIGEST_LENGTH * 2];
+
+		HashState() {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				digest = null;
+			}
+			this.digest = digest;
+		}
+	}
+}
@@ -39,7 +39,16 @@ public class VersionUtils {
 		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1;
 	}
 
+	public static boolean hasIceCreamSandwich() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+	}
+
 	public static boolean hasJellyBean() {
 		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
 	}
+
+	public static boolean hasKitKat() {
+		// VERSION_CODES.KITKAT is not available in the target SDK
+		return Build.VERSION.SDK_INT >= 19;
+	}
 }
\ No newline at end of file